@@ -0,0 +1,101 @@
+/*
+PalReplacer - Copyright (c) 2012 Hendrik Iben - hendrik [dot] iben <at> googlemail [dot] com
+
+Permission is hereby granted, free of charge, to any person obtaining a copy of
+this software and associated documentation files (the "Software"), to deal in
+the Software without restriction, including without limitation the rights to
+use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+of the Software, and to permit persons to whom the Software is furnished to do
+so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+
+
+package palreplacer.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import palreplacer.CompiledPalette;
+import palreplacer.PaletteMatcher;
+import palreplacer.Util;
+
+// nearest color queries for random colors by palette size
+// linearScan is Util.getBestColorIndex, search the exact search behind the
+// lookup table (linear, vector or k-d tree) and lookup the warm lookup table
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class BestColorIndexBenchmark {
+	private static final int QUERIES = 1024;
+
+	@Param({ "16", "32", "64", "256", "1024", "4096" })
+	public int paletteSize;
+
+	private int [] palette;
+	private int [] queries;
+	private PaletteMatcher search;
+	private PaletteMatcher lookup;
+
+	@Setup
+	public void setup() {
+		palette = SyntheticImages.randomColors(paletteSize, 3);
+		queries = SyntheticImages.randomColors(QUERIES, 4);
+		search = Util.createPaletteSearch(palette);
+		lookup = new CompiledPalette(palette, false).getMatcher();
+		for(int c : queries)
+			lookup.getBestColorIndex(-1, c);
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(QUERIES)
+	public int linearScan() {
+		int sum = 0;
+		for(int c : queries)
+			sum += Util.getBestColorIndex(palette, -1, c);
+		return sum;
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(QUERIES)
+	public int search() {
+		int sum = 0;
+		for(int c : queries)
+			sum += search.getBestColorIndex(-1, c);
+		return sum;
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(QUERIES)
+	public int lookup() {
+		int sum = 0;
+		for(int c : queries)
+			sum += lookup.getBestColorIndex(-1, c);
+		return sum;
+	}
+}
@@ -0,0 +1,136 @@
+/*
+PalReplacer - Copyright (c) 2012 Hendrik Iben - hendrik [dot] iben <at> googlemail [dot] com
+
+Permission is hereby granted, free of charge, to any person obtaining a copy of
+this software and associated documentation files (the "Software"), to deal in
+the Software without restriction, including without limitation the rights to
+use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+of the Software, and to permit persons to whom the Software is furnished to do
+so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+
+
+package palreplacer.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.imageio.ImageIO;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import palreplacer.BatchConverter;
+import palreplacer.CompiledPalette;
+import palreplacer.ConversionOptions;
+import palreplacer.ConversionOptions.Overwrite;
+
+// converting a batch of files end to end: decode, map, encode
+// the inputs are 12 PNG and JPEG files of 768x768 pixels, written to a
+// temporary directory at setup
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+public class ConversionBenchmark {
+	private static final int FILES_PER_KIND = 4;
+	private static final int SIZE = 768;
+
+	@Param({ "1", "4" })
+	public int threads;
+
+	@Param({ "false", "true" })
+	public boolean pipelined;
+
+	@Param({ "false", "true" })
+	public boolean dither;
+
+	private File inDir;
+	private File outDir;
+	private List<File> inputs;
+	private CompiledPalette palette;
+
+	@Setup
+	public void setup() throws IOException {
+		inDir = createTempDir("palreplacer-bench-in");
+		outDir = createTempDir("palreplacer-bench-out");
+		inputs = new ArrayList<File>();
+
+		String [] kinds = { SyntheticImages.PHOTO, SyntheticImages.PIXELART, SyntheticImages.GRADIENT };
+		for(int k=0; k<kinds.length; k++) {
+			for(int i=0; i<FILES_PER_KIND; i++) {
+				// photos as JPEG like they usually come
+				String format = kinds[k].equals(SyntheticImages.PHOTO) ? "jpg" : "png";
+				File f = new File(inDir, kinds[k] + i + "." + format);
+				ImageIO.write(SyntheticImages.create(kinds[k], SIZE, SIZE, k * 100 + i), format, f);
+				inputs.add(f);
+			}
+		}
+
+		palette = new CompiledPalette(SyntheticImages.randomColors(256, 9), false);
+	}
+
+	@TearDown
+	public void tearDown() {
+		deleteDir(inDir);
+		deleteDir(outDir);
+	}
+
+	@Benchmark
+	public boolean convertBatch() {
+		ConversionOptions options = new ConversionOptions();
+		options.outdir = outDir;
+		options.outFormat = "%s.png";
+		options.overwrite = Overwrite.YES;
+		options.threads = threads;
+		options.pipelined = pipelined;
+		options.noDither = !dither;
+
+		BatchConverter converter = new BatchConverter(palette, options, null);
+		if(!converter.run(inputs))
+			throw new IllegalStateException("Conversion failed: " + converter.getErrors());
+		return true;
+	}
+
+	private static File createTempDir(String prefix) throws IOException {
+		File dir = File.createTempFile(prefix, "");
+		if(!dir.delete() || !dir.mkdir())
+			throw new IOException("Unable to create " + dir.getPath());
+		return dir;
+	}
+
+	private static void deleteDir(File dir) {
+		File [] files = dir.listFiles();
+		if(files != null) {
+			for(File f : files)
+				f.delete();
+		}
+		dir.delete();
+	}
+}
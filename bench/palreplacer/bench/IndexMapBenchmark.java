@@ -0,0 +1,85 @@
+/*
+PalReplacer - Copyright (c) 2012 Hendrik Iben - hendrik [dot] iben <at> googlemail [dot] com
+
+Permission is hereby granted, free of charge, to any person obtaining a copy of
+this software and associated documentation files (the "Software"), to deal in
+the Software without restriction, including without limitation the rights to
+use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+of the Software, and to permit persons to whom the Software is furnished to do
+so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+
+
+package palreplacer.bench;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.IndexColorModel;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import palreplacer.CompiledPalette;
+import palreplacer.ImageConverter;
+
+// indexed sources: building the index map of a source palette and
+// remapping a whole image with a cached map
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class IndexMapBenchmark {
+	@Param({ "16", "256" })
+	public int sourceColors;
+
+	@Param({ "256" })
+	public int paletteSize;
+
+	private CompiledPalette palette;
+	private BufferedImage image;
+	private int [] sourcePalette;
+	private ImageConverter converter;
+
+	@Setup
+	public void setup() {
+		palette = new CompiledPalette(SyntheticImages.randomColors(paletteSize, 5), false);
+		image = SyntheticImages.indexed(1024, 1024, sourceColors, 6);
+		IndexColorModel icm = (IndexColorModel)image.getColorModel();
+		sourcePalette = new int [icm.getMapSize()];
+		icm.getRGBs(sourcePalette);
+		converter = new ImageConverter(palette, true);
+	}
+
+	// a new converter has an empty remap cache
+	@Benchmark
+	public Object buildIndexMap() {
+		return new ImageConverter(palette, true).getIndexMap(sourcePalette, true);
+	}
+
+	@Benchmark
+	public BufferedImage remapImage() {
+		return converter.convert(image);
+	}
+}
@@ -0,0 +1,134 @@
+/*
+PalReplacer - Copyright (c) 2012 Hendrik Iben - hendrik [dot] iben <at> googlemail [dot] com
+
+Permission is hereby granted, free of charge, to any person obtaining a copy of
+this software and associated documentation files (the "Software"), to deal in
+the Software without restriction, including without limitation the rights to
+use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+of the Software, and to permit persons to whom the Software is furnished to do
+so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+
+
+package palreplacer.bench;
+
+import java.awt.image.BufferedImage;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import palreplacer.CompiledPalette;
+import palreplacer.ImageConverter;
+import palreplacer.PaletteMatcher;
+import palreplacer.PixelReader;
+import palreplacer.Util;
+
+// truecolor mapping of a 1024x1024 image on one thread
+// warmLookup and coldLookup run ImageConverter with a filled and an empty
+// lookup table. exactSearch and colorCache compare the exact search per pixel
+// with a per-image HashMap in front of it, the "caching colors makes no sense"
+// claim in ImageConverter.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class RowMappingBenchmark {
+	@Param({ SyntheticImages.PHOTO, SyntheticImages.PIXELART, SyntheticImages.GRADIENT })
+	public String kind;
+
+	@Param({ "256" })
+	public int paletteSize;
+
+	private int [] entries;
+	private BufferedImage image;
+	private ImageConverter warm;
+	private ImageConverter cold;
+	private PaletteMatcher search;
+
+	@Setup
+	public void setup() {
+		entries = SyntheticImages.randomColors(paletteSize, 7);
+		image = SyntheticImages.create(kind, 1024, 1024, 8);
+		warm = new ImageConverter(new CompiledPalette(entries, false), true);
+		warm.convert(image);
+		search = Util.createPaletteSearch(entries);
+	}
+
+	@Setup(Level.Invocation)
+	public void newPalette() {
+		cold = new ImageConverter(new CompiledPalette(entries, false), true);
+	}
+
+	@Benchmark
+	public BufferedImage warmLookup() {
+		return warm.convert(image);
+	}
+
+	@Benchmark
+	public BufferedImage coldLookup() {
+		return cold.convert(image);
+	}
+
+	@Benchmark
+	public byte [] exactSearch() {
+		int w = image.getWidth();
+		int h = image.getHeight();
+		byte [] indices = new byte [w * h];
+		int [] line = new int [w];
+		PixelReader reader = PixelReader.forImage(image);
+		for(int j=0; j<h; j++) {
+			reader.readRow(j, 0, w, line);
+			for(int i=0; i<w; i++)
+				indices[j*w+i] = (byte)search.getBestColorIndex(-1, line[i]);
+		}
+		return indices;
+	}
+
+	@Benchmark
+	public byte [] colorCache() {
+		int w = image.getWidth();
+		int h = image.getHeight();
+		byte [] indices = new byte [w * h];
+		int [] line = new int [w];
+		HashMap<Integer, Integer> cache = new HashMap<Integer, Integer>();
+		PixelReader reader = PixelReader.forImage(image);
+		for(int j=0; j<h; j++) {
+			reader.readRow(j, 0, w, line);
+			for(int i=0; i<w; i++) {
+				Integer c = Integer.valueOf(line[i] & 0xFFFFFF);
+				Integer index = cache.get(c);
+				if(index == null) {
+					index = Integer.valueOf(search.getBestColorIndex(-1, line[i]));
+					cache.put(c, index);
+				}
+				indices[j*w+i] = (byte)index.intValue();
+			}
+		}
+		return indices;
+	}
+}
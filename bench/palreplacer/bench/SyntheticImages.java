@@ -0,0 +1,138 @@
+/*
+PalReplacer - Copyright (c) 2012 Hendrik Iben - hendrik [dot] iben <at> googlemail [dot] com
+
+Permission is hereby granted, free of charge, to any person obtaining a copy of
+this software and associated documentation files (the "Software"), to deal in
+the Software without restriction, including without limitation the rights to
+use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+of the Software, and to permit persons to whom the Software is furnished to do
+so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+
+
+package palreplacer.bench;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.IndexColorModel;
+import java.awt.image.WritableRaster;
+import java.util.Random;
+
+// deterministic inputs for the benchmarks
+// photo: smooth color fields with noise, nearly every pixel a new color
+// pixelart: blocks of a few colors with transparency
+// gradient: linear ramps, long runs of slowly changing colors
+public class SyntheticImages {
+	public static final String PHOTO = "photo";
+	public static final String PIXELART = "pixelart";
+	public static final String GRADIENT = "gradient";
+
+	public static BufferedImage create(String kind, int w, int h, long seed) {
+		if(kind.equals(PHOTO))
+			return photo(w, h, seed);
+		if(kind.equals(PIXELART))
+			return pixelArt(w, h, seed);
+		if(kind.equals(GRADIENT))
+			return gradient(w, h);
+		throw new IllegalArgumentException("Unknown image kind: " + kind);
+	}
+
+	// 3 byte BGR like decoded JPEGs
+	public static BufferedImage photo(int w, int h, long seed) {
+		Random random = new Random(seed);
+		double [] phase = new double [6];
+		for(int i=0; i<phase.length; i++)
+			phase[i] = random.nextDouble() * Math.PI * 2;
+
+		BufferedImage bi = new BufferedImage(w, h, BufferedImage.TYPE_3BYTE_BGR);
+		int [] row = new int [w];
+		for(int y=0; y<h; y++) {
+			for(int x=0; x<w; x++) {
+				double u = x * 6.0 / w;
+				double v = y * 6.0 / h;
+				int r = channel(128 + 90 * Math.sin(u + phase[0]) * Math.cos(v * 0.7 + phase[1]) + random.nextGaussian() * 8);
+				int g = channel(128 + 90 * Math.sin(u * 0.8 + v + phase[2]) + random.nextGaussian() * 8);
+				int b = channel(128 + 90 * Math.cos(v * 1.3 + phase[3]) * Math.sin(u * 0.5 + phase[4]) + random.nextGaussian() * 8);
+				row[x] = (r << 16) | (g << 8) | b;
+			}
+			bi.setRGB(0, y, w, 1, row, 0, w);
+		}
+		return bi;
+	}
+
+	// 4 byte ABGR like decoded PNGs with alpha, 8x8 blocks of 24 colors
+	public static BufferedImage pixelArt(int w, int h, long seed) {
+		Random random = new Random(seed);
+		int [] colors = randomColors(24, seed + 1);
+		colors[0] = 0;
+
+		BufferedImage bi = new BufferedImage(w, h, BufferedImage.TYPE_4BYTE_ABGR);
+		int bw = (w + 7) / 8;
+		int bh = (h + 7) / 8;
+		int [] blocks = new int [bw * bh];
+		for(int i=0; i<blocks.length; i++)
+			blocks[i] = colors[random.nextInt(colors.length)];
+
+		int [] row = new int [w];
+		for(int y=0; y<h; y++) {
+			for(int x=0; x<w; x++)
+				row[x] = blocks[(y / 8) * bw + x / 8];
+			bi.setRGB(0, y, w, 1, row, 0, w);
+		}
+		return bi;
+	}
+
+	// packed int RGB
+	public static BufferedImage gradient(int w, int h) {
+		BufferedImage bi = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+		int [] row = new int [w];
+		for(int y=0; y<h; y++) {
+			for(int x=0; x<w; x++) {
+				int r = x * 255 / Math.max(1, w - 1);
+				int g = y * 255 / Math.max(1, h - 1);
+				int b = (r + g) / 2;
+				row[x] = (r << 16) | (g << 8) | b;
+			}
+			bi.setRGB(0, y, w, 1, row, 0, w);
+		}
+		return bi;
+	}
+
+	// byte indexed image with a random palette
+	public static BufferedImage indexed(int w, int h, int colors, long seed) {
+		Random random = new Random(seed);
+		int [] rgb = randomColors(colors, seed + 1);
+		IndexColorModel icm = new IndexColorModel(8, colors, rgb, 0, false, -1, DataBuffer.TYPE_BYTE);
+		BufferedImage bi = new BufferedImage(w, h, BufferedImage.TYPE_BYTE_INDEXED, icm);
+		WritableRaster raster = bi.getRaster();
+		for(int y=0; y<h; y++) {
+			for(int x=0; x<w; x++)
+				raster.setSample(x, y, 0, random.nextInt(colors));
+		}
+		return bi;
+	}
+
+	// opaque random colors
+	public static int [] randomColors(int count, long seed) {
+		Random random = new Random(seed);
+		int [] rgb = new int [count];
+		for(int i=0; i<count; i++)
+			rgb[i] = 0xFF000000 | random.nextInt(0x1000000);
+		return rgb;
+	}
+
+	private static int channel(double v) {
+		return v < 0 ? 0 : (v > 255 ? 255 : (int)v);
+	}
+}
@@ -0,0 +1,110 @@
+/*
+PalReplacer - Copyright (c) 2012 Hendrik Iben - hendrik [dot] iben <at> googlemail [dot] com
+
+Permission is hereby granted, free of charge, to any person obtaining a copy of
+this software and associated documentation files (the "Software"), to deal in
+the Software without restriction, including without limitation the rights to
+use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+of the Software, and to permit persons to whom the Software is furnished to do
+so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+
+
+package palreplacer;
+
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+// linear palette search with jdk.incubator.vector
+// the palette is stored as one array per channel, padded to whole vectors,
+// and every lane keeps the best error and index of the entries it sees.
+// Lanes only replace their best on a smaller error and the final reduction
+// takes the lowest index of the smallest error, so results are the same as
+// those of Util.getBestColorIndex.
+// Compiled separately (see build.xml) and loaded by Util when the module is
+// available at runtime.
+public class VectorPaletteMatcher implements PaletteMatcher {
+	private static final VectorSpecies<Integer> SPECIES = IntVector.SPECIES_PREFERRED;
+
+	private final int [] rgb;
+	private final int [] weights;
+	private final int [] red;
+	private final int [] green;
+	private final int [] blue;
+	// palette index of each lane in the first vector
+	private final int [] lanes;
+
+	public VectorPaletteMatcher(int [] rgb) {
+		this.rgb = rgb;
+		this.weights = Util.std_error_weights.clone();
+
+		int n = rgb.length;
+		int padded = SPECIES.loopBound(n + SPECIES.length() - 1);
+		red = new int [padded];
+		green = new int [padded];
+		blue = new int [padded];
+		for(int i=0; i<n; i++) {
+			red[i] = (rgb[i] >> 16) & 0xFF;
+			green[i] = (rgb[i] >> 8) & 0xFF;
+			blue[i] = rgb[i] & 0xFF;
+		}
+
+		lanes = new int [SPECIES.length()];
+		for(int i=0; i<lanes.length; i++)
+			lanes[i] = i;
+	}
+
+	@Override
+	public int [] getPalette() {
+		return rgb;
+	}
+
+	@Override
+	public int getBestColorIndex(int firstTry, int c) {
+		if(firstTry > -1 && firstTry < rgb.length) {
+			if( (rgb[firstTry]&0xFFFFFF) == (c&0xFFFFFF) )
+				return firstTry;
+		}
+
+		int n = rgb.length;
+		IntVector r = IntVector.broadcast(SPECIES, (c >> 16) & 0xFF);
+		IntVector g = IntVector.broadcast(SPECIES, (c >> 8) & 0xFF);
+		IntVector b = IntVector.broadcast(SPECIES, c & 0xFF);
+
+		IntVector bestError = IntVector.broadcast(SPECIES, Integer.MAX_VALUE);
+		IntVector bestIndex = IntVector.zero(SPECIES);
+		IntVector index = IntVector.fromArray(SPECIES, lanes, 0);
+		IntVector step = IntVector.broadcast(SPECIES, SPECIES.length());
+
+		for(int i=0; i<n; i+=SPECIES.length()) {
+			IntVector e = IntVector.fromArray(SPECIES, red, i).sub(r).abs().mul(weights[0])
+				.add(IntVector.fromArray(SPECIES, green, i).sub(g).abs().mul(weights[1]))
+				.add(IntVector.fromArray(SPECIES, blue, i).sub(b).abs().mul(weights[2]));
+
+			VectorMask<Integer> better = e.lt(bestError);
+			if(i + SPECIES.length() > n)
+				better = better.and(SPECIES.indexInRange(i, n));
+
+			bestError = bestError.blend(e, better);
+			bestIndex = bestIndex.blend(index, better);
+			index = index.add(step);
+		}
+
+		int min = bestError.reduceLanes(VectorOperators.MIN);
+		VectorMask<Integer> atMin = bestError.eq(min);
+		return bestIndex.blend(Integer.MAX_VALUE, atMin.not()).reduceLanes(VectorOperators.MIN);
+	}
+}
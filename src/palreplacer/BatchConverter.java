@@ -0,0 +1,555 @@
+/*
+PalReplacer - Copyright (c) 2012 Hendrik Iben - hendrik [dot] iben <at> googlemail [dot] com
+
+Permission is hereby granted, free of charge, to any person obtaining a copy of
+this software and associated documentation files (the "Software"), to deal in
+the Software without restriction, including without limitation the rights to
+use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+of the Software, and to permit persons to whom the Software is furnished to do
+so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+
+
+package palreplacer;
+
+import static palreplacer.Util.getExt;
+import static palreplacer.Util.getNameNoExt;
+
+import java.awt.Dimension;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IllegalFormatException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.stream.ImageInputStream;
+
+import palreplacer.ConversionOptions.Overwrite;
+import palreplacer.ConversionStats.Stage;
+import palreplacer.ConversionStats.Status;
+
+// converts a list of files with a pool of worker threads
+// output names and the overwrite policy are resolved in list order on the calling
+// thread before a file is handed to the pool, so the result does not depend on
+// the number of threads. When several inputs map to the same output file, the
+// first one in the list is converted and the others are reported as errors.
+// Files are either converted completely on one pool thread or, pipelined, with
+// separate threads for decoding, mapping and encoding (see ConversionPipeline).
+// Time, pixels and bytes of every stage and file are recorded in ConversionStats,
+// files and encoding are also reported to Java Flight Recorder (see ConversionEvents).
+public class BatchConverter {
+	public interface Listener {
+		// called on the calling thread for existing outputs if overwrite is set to ASK
+		public boolean confirmOverwrite(File outFile);
+
+		// called from any thread when a file is done, error is null on success
+		public void fileFinished(int index, File input, String error);
+	}
+
+	private final CompiledPalette palette;
+	private final ConversionOptions options;
+	private final ForkJoinPool pool;
+	private final ImageConverter converter;
+	private final PaletteRewriter rewriter;
+	private final StripConverter stripConverter;
+	private final Listener listener;
+
+	// set for incremental conversion
+	private ConversionManifest manifest;
+	// set for pipelined conversion
+	private ConversionPipeline pipeline;
+	private ConversionStats stats;
+
+	private volatile boolean cancelled = false;
+	private final AtomicInteger finished = new AtomicInteger();
+	private final List<String> errors = Collections.synchronizedList(new ArrayList<String>());
+
+	public BatchConverter(CompiledPalette palette, ConversionOptions options, Listener listener) {
+		this.palette = palette;
+		this.options = options;
+		this.pool = new ForkJoinPool(Math.max(1, options.threads));
+		BufferPool buffers = options.poolBytes > 0 ? new BufferPool(palette, options.poolBytes) : null;
+		this.converter = new ImageConverter(palette, options.noDither ? null : options.dither, options.splitImages ? pool : null, buffers);
+		this.rewriter = options.rewriteIndexed && options.noDither && options.directEncoder ? new PaletteRewriter(palette, converter) : null;
+		this.stripConverter = options.directEncoder ? new StripConverter(palette, converter, options.stripPixels) : null;
+		this.listener = listener;
+	}
+
+	public CompiledPalette getPalette() {
+		return palette;
+	}
+
+	// manifest of an incremental run, null otherwise
+	public ConversionManifest getManifest() {
+		return manifest;
+	}
+
+	// pipeline of a pipelined run, null otherwise
+	public ConversionPipeline getPipeline() {
+		return pipeline;
+	}
+
+	// statistics of the run, null before it is started
+	public ConversionStats getStats() {
+		return stats;
+	}
+
+	public void cancel() {
+		cancelled = true;
+		if(pipeline != null)
+			pipeline.cancel();
+	}
+
+	public boolean isCancelled() {
+		return cancelled;
+	}
+
+	public int getFinishedCount() {
+		return finished.get();
+	}
+
+	public List<String> getErrors() {
+		synchronized (errors) {
+			return new ArrayList<String>(errors);
+		}
+	}
+
+	public File getOutputFile(File f) {
+		String fname = f.getName();
+		String ext = getExt(fname);
+		String name = getNameNoExt(fname);
+
+		String out = String.format(options.outFormat, name, ext);
+		if(out.length() == 0) {
+			out = fname;
+		}
+
+		return new File(options.outdir, out);
+	}
+
+	// returns true if all files were converted without errors
+	// a BatchConverter runs a single batch, its pool is shut down afterwards
+	public boolean run(List<File> inputs) {
+		Map<File, File> claimed = new HashMap<File, File>();
+		boolean overwriteAsk = options.overwrite == Overwrite.ASK;
+		boolean neverOverwrite = options.overwrite == Overwrite.NO;
+		stats = new ConversionStats(inputs);
+
+		if(options.incremental) {
+			try {
+				manifest = new ConversionManifest(options.outdir, palette, options);
+			} catch (IOException e) {
+				errors.add("Unable to read conversion manifest: " + e.getMessage());
+			}
+		}
+
+		if(options.pipelined) {
+			pipeline = new ConversionPipeline(pipelineSteps, options.readers, options.threads, options.encoders, ConversionPipeline.defaultPixelBudget());
+			pipeline.start();
+		}
+
+		try {
+			for(int file_index=0; file_index<inputs.size(); file_index++) {
+				if(cancelled)
+					break;
+
+				final int index = file_index;
+				final File f = inputs.get(file_index);
+				final File outFile;
+
+				try {
+					outFile = getOutputFile(f);
+				} catch(IllegalFormatException ife) {
+					failed(index, f, "invalid output format: " + ife.getMessage());
+					continue;
+				}
+
+				File key = outFile.getAbsoluteFile();
+				File first = claimed.get(key);
+				if(first != null) {
+					failed(index, f, "output '" + outFile.getName() + "' is already written for " + first.getPath());
+					continue;
+				}
+				claimed.put(key, f);
+				stats.setOutput(index, outFile);
+
+				ConversionJob job = new ConversionJob(index, f, outFile);
+				String outExt = getOutputFormat(job);
+				if(!palette.canWrite(outExt)) {
+					failed(index, f, "format '" + outExt + "' can not store " + palette.size() + " colors, use png, tiff" + (palette.hasAlpha() ? "" : " or bmp"));
+					continue;
+				}
+				boolean doWrite = true;
+
+				// with a manifest, up to date outputs are skipped and outdated
+				// outputs of earlier conversions are rebuilt without asking
+				// (when overwriting anyway, decode checks this on the pool threads)
+				boolean rebuild = false;
+				if(manifest != null && (neverOverwrite || overwriteAsk) && outFile.exists()) {
+					try {
+						if(isUpToDate(job)) {
+							done(index, f, Status.UP_TO_DATE, null);
+							continue;
+						}
+					} catch (IOException e) {
+						failed(index, f, e.getMessage());
+						continue;
+					}
+					rebuild = manifest.isRecorded(outFile);
+				}
+
+				if(!rebuild && (neverOverwrite || overwriteAsk) && outFile.exists()) {
+					if(neverOverwrite)
+						doWrite = false;
+					else
+						doWrite = listener != null && listener.confirmOverwrite(outFile);
+				}
+
+				if(cancelled)
+					break;
+
+				if(!doWrite) {
+					done(index, f, Status.SKIPPED, null);
+					continue;
+				}
+
+				if(pipeline != null)
+					pipeline.submit(job);
+				else
+					pool.execute(new FileTask(job));
+			}
+		} finally {
+			try {
+				if(pipeline != null) {
+					if(cancelled)
+						pipeline.cancel();
+					pipeline.finish();
+				}
+				pool.shutdown();
+				while(!pool.awaitTermination(100, TimeUnit.MILLISECONDS)) {
+					// keep waiting, cancelled tasks return immediately
+				}
+			} catch (InterruptedException e) {
+				cancelled = true;
+				pool.shutdownNow();
+				Thread.currentThread().interrupt();
+			}
+
+			if(manifest != null) {
+				try {
+					manifest.save();
+				} catch (IOException e) {
+					errors.add("Unable to write conversion manifest: " + e.getMessage());
+				}
+			}
+			stats.end();
+		}
+
+		return errors.isEmpty();
+	}
+
+	// checks the manifest, computing the key of the job if needed
+	private boolean isUpToDate(ConversionJob job) throws IOException {
+		if(job.key == null)
+			job.key = manifest.getKey(job.input, job.output);
+		return manifest.isUpToDate(job.key, job.output);
+	}
+
+	// reads the input, returns false if there is nothing to do
+	// the time goes to the decode stage, or to rewrite or strips if the file is
+	// converted right away
+	private boolean decode(ConversionJob job) throws IOException {
+		job.startNanos = System.nanoTime();
+		job.event = new ConversionEvents.FileConversion();
+		job.event.begin();
+		job.event.route = "decode";
+		stats.read(job.index, job.input.length());
+
+		Stage stage = Stage.DECODE;
+		try {
+			if(manifest != null && job.key == null && isUpToDate(job)) {
+				endEvent(job, Status.UP_TO_DATE, null);
+				done(job.index, job.input, Status.UP_TO_DATE, null);
+				return false;
+			}
+
+			// indexed PNG and GIF inputs are converted without decoding them
+			if(rewriter != null) {
+				String outExt = getOutputFormat(job);
+				if(rewriter.canWrite(outExt)) {
+					stage = Stage.REWRITE;
+					Dimension size = rewriter.rewrite(job.input, job.output, outExt);
+					if(size != null) {
+						job.pixels = (long)size.width * size.height;
+						job.event.route = "rewrite";
+						setEventImage(job, size.width, size.height, "indexed, rewritten");
+						finish(job);
+						return false;
+					}
+					stage = Stage.DECODE;
+				}
+			}
+
+			ImageInputStream iis = FileInput.openImage(job.input);
+			if(iis == null)
+				throw new IOException("unable to open file");
+
+			try {
+				Iterator<ImageReader> readers = ImageIO.getImageReaders(iis);
+				if(!readers.hasNext())
+					throw new IOException("unsupported image format");
+
+				ImageReader reader = readers.next();
+				try {
+					reader.setInput(iis, true, true);
+
+					// images too large for memory are converted in strips
+					int w = reader.getWidth(0);
+					int h = reader.getHeight(0);
+					long pixels = (long)w * h;
+					if(stripConverter != null && pixels > options.streamPixels) {
+						String outExt = getOutputFormat(job);
+						if(stripConverter.canWrite(outExt)) {
+							stage = Stage.STRIPS;
+							job.event.route = "strips";
+							if(job.event.isEnabled()) {
+								ImageTypeSpecifier type = reader.getRawImageType(0);
+								setEventImage(job, w, h, type == null ? "unknown" : describe(type.getColorModel()));
+							}
+							ImageConverter.MatchCount count = new ImageConverter.MatchCount();
+							stripConverter.convert(reader, job.output, outExt, count);
+							stats.matched(job.index, count.getPixels(), count.getExact());
+							job.pixels = pixels;
+							finish(job);
+							return false;
+						}
+					}
+
+					// the decoded image counts against the budget of the pipeline
+					if(pipeline != null)
+						pipeline.reserve(job, pixels);
+					BufferedImage bi = reader.read(0, reader.getDefaultReadParam());
+					job.image = bi;
+					job.pixels = (long)bi.getWidth() * bi.getHeight();
+					if(job.event.isEnabled())
+						setEventImage(job, bi.getWidth(), bi.getHeight(), describe(bi.getColorModel()));
+					return true;
+				} finally {
+					reader.dispose();
+				}
+			} finally {
+				iis.close();
+			}
+		} finally {
+			stats.addTime(job.index, stage, System.nanoTime() - job.startNanos);
+		}
+	}
+
+	private void map(ConversionJob job) throws IOException {
+		long t = System.nanoTime();
+		try {
+			ImageConverter.MatchCount count = new ImageConverter.MatchCount();
+			if(useOffHeap(job)) {
+				BufferedImage bi = job.image;
+				int w = bi.getWidth();
+				int h = bi.getHeight();
+				job.indices = options.offHeap == ConversionOptions.OffHeap.MAPPED
+					? IndexBuffer.map(w, h, options.scratchDir)
+					: IndexBuffer.allocateDirect(w, h);
+				converter.convert(bi, converter.createDitherer(w), count, job.indices, options.stripPixels);
+				job.image = null;
+			} else {
+				// the decoded image is not needed afterwards, indexed images are remapped in place
+				job.image = converter.convertInPlace(job.image, converter.createDitherer(job.image.getWidth()), count);
+			}
+			stats.matched(job.index, count.getPixels(), count.getExact());
+		} finally {
+			stats.addTime(job.index, converter.getDitherMethod() != null ? Stage.DITHER : Stage.MAP, System.nanoTime() - t);
+		}
+	}
+
+	// large results are kept off the heap if they can be written row by row
+	private boolean useOffHeap(ConversionJob job) {
+		if(options.offHeap == ConversionOptions.OffHeap.NONE || job.pixels <= options.offHeapPixels)
+			return false;
+		return options.directEncoder && !palette.isShortIndexed() && IndexedImageWriter.canWrite(getOutputFormat(job), palette.size());
+	}
+
+	// format of the output file, from its extension or else the input extension
+	private static String getOutputFormat(ConversionJob job) {
+		String outExt = getExt(job.output.getName());
+		if(outExt.length() == 0)
+			outExt = getExt(job.input.getName());
+		if(outExt.length() == 0)
+			outExt = "png";
+		return outExt;
+	}
+
+	private void encode(ConversionJob job) throws IOException {
+		String outExt = getOutputFormat(job);
+
+		boolean direct = options.directEncoder && IndexedImageWriter.canWrite(outExt, palette.size());
+		ConversionEvents.Encode event = new ConversionEvents.Encode();
+		event.begin();
+		long t = System.nanoTime();
+		try {
+			if(job.indices != null) {
+				event.width = job.indices.getWidth();
+				event.height = job.indices.getHeight();
+				// useOffHeap only keeps indices for direct outputs
+				IndexedImageWriter.write(job.indices, palette, outExt, job.output);
+				job.release();
+			} else {
+				event.width = job.image.getWidth();
+				event.height = job.image.getHeight();
+				if(direct)
+					IndexedImageWriter.write(job.image, palette, outExt, job.output);
+				else if(!ImageIO.write(palette.toWritableImage(job.image), outExt, job.output))
+					throw new IOException("no ImageIO writer for format '" + outExt + "'");
+				converter.recycle(job.image);
+				job.image = null;
+			}
+		} finally {
+			stats.addTime(job.index, Stage.ENCODE, System.nanoTime() - t);
+			event.end();
+			if(event.shouldCommit()) {
+				event.output = job.output.getPath();
+				event.format = outExt;
+				event.encoder = direct ? "indexed" : "imageio";
+				event.bytes = job.output.length();
+				event.commit();
+			}
+		}
+
+		finish(job);
+	}
+
+	private void finish(ConversionJob job) throws IOException {
+		if(manifest != null)
+			manifest.record(job.key, job.output, (System.nanoTime() - job.startNanos) / 1000000L);
+		stats.converted(job.index, job.pixels, job.output.length());
+		endEvent(job, Status.CONVERTED, null);
+		done(job.index, job.input, Status.CONVERTED, null);
+	}
+
+	private static void setEventImage(ConversionJob job, int width, int height, String sourceType) {
+		job.event.width = width;
+		job.event.height = height;
+		job.event.sourceType = sourceType;
+	}
+
+	// color model class and bits per pixel, "IndexColorModel 8 bit"
+	private static String describe(ColorModel cm) {
+		return cm.getClass().getSimpleName() + " " + cm.getPixelSize() + " bit";
+	}
+
+	// commits the flight recorder event of the file, if it is recorded
+	private void endEvent(ConversionJob job, Status status, String error) {
+		ConversionEvents.FileConversion event = job.event;
+		if(event == null)
+			return;
+		job.event = null;
+
+		event.end();
+		if(event.shouldCommit()) {
+			event.input = job.input.getPath();
+			event.output = job.output.getPath();
+			event.paletteSize = palette.size();
+			event.status = status.getId();
+			event.error = error;
+			event.commit();
+		}
+	}
+
+	// all steps of a job on one pool thread
+	private class FileTask implements Runnable {
+		private final ConversionJob job;
+
+		FileTask(ConversionJob job) {
+			this.job = job;
+		}
+
+		@Override
+		public void run() {
+			if(cancelled)
+				return;
+
+			try {
+				if(!decode(job))
+					return;
+				map(job);
+				encode(job);
+			} catch (IOException e) {
+				failed(job, e.getMessage());
+			} catch (RuntimeException e) {
+				failed(job, e.toString());
+			} catch (OutOfMemoryError e) {
+				job.release();
+				failed(job, "out of memory");
+			}
+		}
+	}
+
+	private final ConversionPipeline.Steps pipelineSteps = new ConversionPipeline.Steps() {
+		@Override
+		public boolean decode(ConversionJob job) throws IOException {
+			return BatchConverter.this.decode(job);
+		}
+
+		@Override
+		public void map(ConversionJob job) throws IOException {
+			BatchConverter.this.map(job);
+		}
+
+		@Override
+		public void encode(ConversionJob job) throws IOException {
+			BatchConverter.this.encode(job);
+		}
+
+		@Override
+		public void failed(ConversionJob job, String error) {
+			BatchConverter.this.failed(job, error);
+		}
+	};
+
+	private void done(int index, File f, Status status, String error) {
+		stats.done(index, status, error);
+		finished.incrementAndGet();
+		if(listener != null)
+			listener.fileFinished(index, f, error);
+	}
+
+	private void failed(ConversionJob job, String error) {
+		job.release();
+		endEvent(job, Status.FAILED, error);
+		failed(job.index, job.input, error);
+	}
+
+	private void failed(int index, File f, String error) {
+		errors.add(f.getPath() + ": " + error);
+		done(index, f, Status.FAILED, error);
+	}
+}
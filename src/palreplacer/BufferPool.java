@@ -0,0 +1,186 @@
+/*
+PalReplacer - Copyright (c) 2012 Hendrik Iben - hendrik [dot] iben <at> googlemail [dot] com
+
+Permission is hereby granted, free of charge, to any person obtaining a copy of
+this software and associated documentation files (the "Software"), to deal in
+the Software without restriction, including without limitation the rights to
+use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+of the Software, and to permit persons to whom the Software is furnished to do
+so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+
+
+package palreplacer;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// reuses target images and scratch buffers from one file to the next
+// released buffers are kept by kind and size up to a memory cap, when the cap is
+// reached the buffers of the least recently used size are dropped first.
+// Buffers are handed out as they were released, users overwrite every element.
+// Images are created for one palette, a pool must only be used with that palette.
+// All methods may be called from any thread.
+public class BufferPool {
+	private static final int BYTE_IMAGE = 0;
+	private static final int SHORT_IMAGE = 1;
+	private static final int INTS = 2;
+	private static final int HISTOGRAM = 3;
+
+	private static class Key {
+		private final int kind;
+		private final int w;
+		private final int h;
+
+		Key(int kind, int w, int h) {
+			this.kind = kind;
+			this.w = w;
+			this.h = h;
+		}
+
+		@Override
+		public int hashCode() {
+			return (kind * 31 + w) * 31 + h;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if(!(o instanceof Key))
+				return false;
+			Key k = (Key)o;
+			return kind == k.kind && w == k.w && h == k.h;
+		}
+	}
+
+	private final CompiledPalette palette;
+	private final long capacity;
+	// access ordered, the first entry was used longest ago
+	private final Map<Key, ArrayDeque<Object>> free = new LinkedHashMap<Key, ArrayDeque<Object>>(16, 0.75f, true);
+	private long bytes = 0;
+	private long hits = 0;
+	private long misses = 0;
+
+	public BufferPool(CompiledPalette palette, long capacity) {
+		this.palette = palette;
+		this.capacity = capacity;
+	}
+
+	public CompiledPalette getPalette() {
+		return palette;
+	}
+
+	// an image of CompiledPalette.createImage, with any content
+	public BufferedImage takeImage(int w, int h) {
+		BufferedImage bi = (BufferedImage)take(new Key(palette.isShortIndexed() ? SHORT_IMAGE : BYTE_IMAGE, w, h));
+		return bi != null ? bi : palette.createImage(w, h);
+	}
+
+	// takes back an image with the color model of the palette and one byte or
+	// short per pixel without padding
+	public void releaseImage(BufferedImage bi) {
+		DataBuffer db = bi.getRaster().getDataBuffer();
+		boolean shortIndexed = db.getDataType() == DataBuffer.TYPE_USHORT;
+		int w = bi.getWidth();
+		int h = bi.getHeight();
+		release(new Key(shortIndexed ? SHORT_IMAGE : BYTE_IMAGE, w, h), bi, (long)db.getSize() * (shortIndexed ? 2 : 1));
+	}
+
+	public int [] takeInts(int length) {
+		int [] a = (int [])take(new Key(INTS, length, 0));
+		return a != null ? a : new int [length];
+	}
+
+	public void releaseInts(int [] a) {
+		release(new Key(INTS, a.length, 0), a, 4L * a.length);
+	}
+
+	// an empty histogram
+	public ColorHistogram takeHistogram(int limit) {
+		ColorHistogram histogram = (ColorHistogram)take(new Key(HISTOGRAM, limit, 0));
+		if(histogram == null)
+			return new ColorHistogram(limit);
+		histogram.clear();
+		return histogram;
+	}
+
+	public void releaseHistogram(ColorHistogram histogram) {
+		release(new Key(HISTOGRAM, histogram.getLimit(), 0), histogram, histogram.getBytes());
+	}
+
+	private synchronized Object take(Key key) {
+		ArrayDeque<Object> list = free.get(key);
+		if(list == null || list.isEmpty()) {
+			misses++;
+			return null;
+		}
+
+		hits++;
+		Object o = list.pop();
+		bytes -= sizeOf(key, o);
+		return o;
+	}
+
+	private synchronized void release(Key key, Object o, long size) {
+		if(size > capacity)
+			return;
+
+		// drop the oldest buffers until the new one fits
+		Iterator<Map.Entry<Key, ArrayDeque<Object>>> it = free.entrySet().iterator();
+		while(bytes + size > capacity && it.hasNext()) {
+			Map.Entry<Key, ArrayDeque<Object>> e = it.next();
+			ArrayDeque<Object> list = e.getValue();
+			while(bytes + size > capacity && !list.isEmpty())
+				bytes -= sizeOf(e.getKey(), list.removeLast());
+			if(list.isEmpty())
+				it.remove();
+		}
+
+		ArrayDeque<Object> list = free.get(key);
+		if(list == null) {
+			list = new ArrayDeque<Object>();
+			free.put(key, list);
+		}
+		list.push(o);
+		bytes += size;
+	}
+
+	private static long sizeOf(Key key, Object o) {
+		switch(key.kind) {
+		case INTS:
+			return 4L * key.w;
+		case HISTOGRAM:
+			return ((ColorHistogram)o).getBytes();
+		default:
+			DataBuffer db = ((BufferedImage)o).getRaster().getDataBuffer();
+			return (long)db.getSize() * (key.kind == SHORT_IMAGE ? 2 : 1);
+		}
+	}
+
+	// bytes held by idle buffers
+	public synchronized long getBytes() {
+		return bytes;
+	}
+
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	public synchronized long getMisses() {
+		return misses;
+	}
+}
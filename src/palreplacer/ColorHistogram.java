@@ -0,0 +1,168 @@
+/*
+PalReplacer - Copyright (c) 2012 Hendrik Iben - hendrik [dot] iben <at> googlemail [dot] com
+
+Permission is hereby granted, free of charge, to any person obtaining a copy of
+this software and associated documentation files (the "Software"), to deal in
+the Software without restriction, including without limitation the rights to
+use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+of the Software, and to permit persons to whom the Software is furnished to do
+so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+
+
+package palreplacer;
+
+import java.util.Arrays;
+
+// distinct colors of a range of rows with their pixel counts and palette indices
+// open addressing hash of the 24 bit colors with linear probing. Images with few
+// colors are searched once per color instead of once per pixel. Rows are added
+// and resolved one at a time, so a band with more than 'limit' colors is given
+// up on at the first row that exceeds it and that row is left out.
+public class ColorHistogram {
+	private static final int EMPTY = -1;
+
+	private final int limit;
+	private final int [] colors;
+	private final int [] counts;
+	private final int [] indices;
+	// colors of the palette, known after resolve
+	private final boolean [] exact;
+	// slots added since the last resolve
+	private final int [] pending;
+	private final int mask;
+	private final int shift;
+	private int size = 0;
+	private int pendingSize = 0;
+
+	public ColorHistogram(int limit) {
+		this.limit = limit;
+		// load factor of at most one half
+		int capacity = Integer.highestOneBit(Math.max(1, limit)) << 2;
+		colors = new int [capacity];
+		counts = new int [capacity];
+		indices = new int [capacity];
+		exact = new boolean [capacity];
+		pending = new int [limit];
+		mask = capacity - 1;
+		shift = Integer.numberOfLeadingZeros(mask);
+
+		clear();
+	}
+
+	// forgets all colors, for reusing the histogram (see BufferPool)
+	public void clear() {
+		Arrays.fill(colors, EMPTY);
+		Arrays.fill(counts, 0);
+		size = 0;
+		pendingSize = 0;
+	}
+
+	public int getLimit() {
+		return limit;
+	}
+
+	// memory used by the tables
+	public long getBytes() {
+		return 13L * colors.length + 4L * pending.length;
+	}
+
+	private int slot(int c) {
+		return (c * 0x9E3779B1) >>> shift;
+	}
+
+	// counts the pixels of a row, returns false if that makes more than limit colors
+	// the counts of the row are taken back then
+	public boolean add(int [] rgb, int n) {
+		int last = EMPTY;
+		int lastSlot = 0;
+		for(int i=0; i<n; i++) {
+			int c = rgb[i] & 0xFFFFFF;
+			// runs of the same color are common in the images this is for
+			if(c == last) {
+				counts[lastSlot]++;
+				continue;
+			}
+
+			int slot = find(c);
+			if(colors[slot] == EMPTY) {
+				if(size == limit) {
+					remove(rgb, i);
+					return false;
+				}
+				colors[slot] = c;
+				pending[pendingSize++] = slot;
+				size++;
+			}
+			counts[slot]++;
+			last = c;
+			lastSlot = slot;
+		}
+		return true;
+	}
+
+	// slot of c or the empty slot it goes to
+	private int find(int c) {
+		int slot = slot(c);
+		int key;
+		while( (key = colors[slot]) != EMPTY && key != c)
+			slot = (slot + 1) & mask;
+		return slot;
+	}
+
+	// takes back the counts of the first n pixels of a row
+	// colors stay with a count of zero, they are resolved like the others
+	private void remove(int [] rgb, int n) {
+		for(int i=0; i<n; i++)
+			counts[find(rgb[i] & 0xFFFFFF)]--;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	// finds the palette index of every color added since the last call,
+	// palette colors in the exact table
+	public void resolve(ExactColorTable exactTable, PaletteMatcher matcher) {
+		for(int p=0; p<pendingSize; p++) {
+			int slot = pending[p];
+			int c = colors[slot];
+			int index = exactTable.get(c);
+			exact[slot] = index >= 0;
+			if(index < 0)
+				index = matcher.getBestColorIndex(-1, c);
+			indices[slot] = index;
+		}
+		pendingSize = 0;
+	}
+
+	// pixels counted with a color of the palette, known after resolve
+	public long getExactPixels() {
+		long pixels = 0;
+		for(int slot=0; slot<colors.length; slot++) {
+			if(colors[slot] != EMPTY && exact[slot])
+				pixels += counts[slot];
+		}
+		return pixels;
+	}
+
+	// palette index of a counted color
+	public int get(int c) {
+		c &= 0xFFFFFF;
+		int slot = slot(c);
+		while(colors[slot] != c)
+			slot = (slot + 1) & mask;
+		return indices[slot];
+	}
+}
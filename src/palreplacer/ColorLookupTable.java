@@ -0,0 +1,142 @@
+/*
+PalReplacer - Copyright (c) 2012 Hendrik Iben - hendrik [dot] iben <at> googlemail [dot] com
+
+Permission is hereby granted, free of charge, to any person obtaining a copy of
+this software and associated documentation files (the "Software"), to deal in
+the Software without restriction, including without limitation the rights to
+use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+of the Software, and to permit persons to whom the Software is furnished to do
+so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+
+package palreplacer;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+// maps rgb colors to the best palette index
+// the rgb cube is quantized to 'bits' per channel (5, 6 or 8 for a 15, 18 or 24 bit cube)
+// and split into one page per red value. Pages are allocated when first touched
+// and cells are filled on first lookup, so images with few colors stay cheap.
+// Empty cells are resolved with another matcher, with 8 bits the results are identical.
+// Lookups may run concurrently, racing fills always store the same value.
+public class ColorLookupTable implements PaletteMatcher {
+	// cells store index+1, zero marks an unfilled cell
+	public static final int MAX_ENTRIES = 0xFFFF;
+
+	private final int [] rgb;
+	private final PaletteMatcher search;
+	private final int bits;
+	private final int shift;
+	private final int pageSize;
+	private final AtomicReferenceArray<char []> pages;
+
+	public ColorLookupTable(PaletteMatcher search) {
+		this(search, 8);
+	}
+
+	public ColorLookupTable(PaletteMatcher search, int bits) {
+		int [] rgb = search.getPalette();
+
+		if(bits < 1 || bits > 8)
+			throw new IllegalArgumentException("Invalid number of bits per channel: " + bits);
+		if(rgb.length > MAX_ENTRIES)
+			throw new IllegalArgumentException("Palette too large for lookup table: " + rgb.length);
+
+		this.rgb = rgb;
+		this.search = search;
+		this.bits = bits;
+		this.shift = 8 - bits;
+		this.pageSize = 1 << (2*bits);
+		this.pages = new AtomicReferenceArray<char []>(1 << bits);
+	}
+
+	public int getBits() {
+		return bits;
+	}
+
+	@Override
+	public int [] getPalette() {
+		return rgb;
+	}
+
+	@Override
+	public int getBestColorIndex(int firstTry, int c) {
+		if(firstTry > -1 && firstTry < rgb.length) {
+			if( (rgb[firstTry]&0xFFFFFF) == (c&0xFFFFFF) )
+				return firstTry;
+		}
+
+		int r = ((c >> 16) & 0xFF) >> shift;
+		int g = ((c >>  8) & 0xFF) >> shift;
+		int b = ((c >>  0) & 0xFF) >> shift;
+
+		char [] page = pages.get(r);
+		if(page == null) {
+			pages.compareAndSet(r, null, new char [pageSize]);
+			page = pages.get(r);
+		}
+
+		int cell = (g << bits) | b;
+		int v = page[cell];
+		if(v == 0) {
+			v = search.getBestColorIndex(-1, cellColor(r, g, b)) + 1;
+			page[cell] = (char)v;
+		}
+
+		return v - 1;
+	}
+
+	private int cellColor(int r, int g, int b) {
+		return cellColor(r, g, b, shift);
+	}
+
+	// center color of a quantized cell, exact for 8 bits
+	private static int cellColor(int r, int g, int b, int shift) {
+		if(shift == 0)
+			return (r << 16) | (g << 8) | b;
+
+		int half = 1 << (shift - 1);
+		return (((r << shift) | half) << 16) | (((g << shift) | half) << 8) | ((b << shift) | half);
+	}
+
+	// filled table of (r << 2*bits) | (g << bits) | b to palette indices
+	// for callers that need every cell and no per-lookup checks
+	public static char [] createTable(PaletteMatcher search, int bits) {
+		if(bits < 1 || bits > 8)
+			throw new IllegalArgumentException("Invalid number of bits per channel: " + bits);
+
+		ConversionEvents.LookupTableBuild event = new ConversionEvents.LookupTableBuild();
+		event.begin();
+
+		int shift = 8 - bits;
+		int size = 1 << bits;
+		char [] table = new char [1 << (3*bits)];
+		int cell = 0;
+		for(int r=0; r<size; r++) {
+			for(int g=0; g<size; g++) {
+				for(int b=0; b<size; b++)
+					table[cell++] = (char)search.getBestColorIndex(-1, cellColor(r, g, b, shift));
+			}
+		}
+
+		event.end();
+		if(event.shouldCommit()) {
+			event.table = "rgb " + bits + " bit";
+			event.cells = table.length;
+			event.paletteSize = search.getPalette().length;
+			event.commit();
+		}
+		return table;
+	}
+}
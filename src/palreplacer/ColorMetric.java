@@ -0,0 +1,233 @@
+/*
+PalReplacer - Copyright (c) 2012 Hendrik Iben - hendrik [dot] iben <at> googlemail [dot] com
+
+Permission is hereby granted, free of charge, to any person obtaining a copy of
+this software and associated documentation files (the "Software"), to deal in
+the Software without restriction, including without limitation the rights to
+use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+of the Software, and to permit persons to whom the Software is furnished to do
+so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+
+
+package palreplacer;
+
+// distances for matching colors to palette entries
+// colors are transformed into the space of the metric once and compared
+// there, so palettes are transformed when they are compiled and source colors
+// once per lookup table cell. Distances only need to order candidates, the
+// euclidean metrics skip the square root.
+public enum ColorMetric {
+	// weighted manhattan distance in sRGB, see Util.colorError
+	WEIGHTED_RGB("Weighted RGB", 3) {
+		@Override
+		public void transform(int rgb, double [] out, int o) {
+			int [] w = Util.std_error_weights;
+			out[o] = ((rgb >> 16) & 0xFF) * w[0];
+			out[o+1] = ((rgb >> 8) & 0xFF) * w[1];
+			out[o+2] = (rgb & 0xFF) * w[2];
+		}
+
+		@Override
+		public double distance(double [] a, int ai, double [] b, int bi) {
+			return Math.abs(a[ai] - b[bi]) + Math.abs(a[ai+1] - b[bi+1]) + Math.abs(a[ai+2] - b[bi+2]);
+		}
+	},
+
+	// squared euclidean distance in sRGB
+	EUCLIDEAN_RGB("Euclidean RGB", 3) {
+		@Override
+		public void transform(int rgb, double [] out, int o) {
+			out[o] = (rgb >> 16) & 0xFF;
+			out[o+1] = (rgb >> 8) & 0xFF;
+			out[o+2] = rgb & 0xFF;
+		}
+
+		@Override
+		public double distance(double [] a, int ai, double [] b, int bi) {
+			return squared(a, ai, b, bi);
+		}
+	},
+
+	// CIE 1976 delta E, euclidean distance in CIELAB
+	CIE76("CIELAB \u0394E76", 3) {
+		@Override
+		public void transform(int rgb, double [] out, int o) {
+			toLab(rgb, out, o);
+		}
+
+		@Override
+		public double distance(double [] a, int ai, double [] b, int bi) {
+			return squared(a, ai, b, bi);
+		}
+	},
+
+	// CIEDE2000 delta E, the chroma of each color is kept with L, a and b
+	CIEDE2000("CIEDE2000", 4) {
+		@Override
+		public void transform(int rgb, double [] out, int o) {
+			toLab(rgb, out, o);
+			out[o+3] = Math.sqrt(out[o+1] * out[o+1] + out[o+2] * out[o+2]);
+		}
+
+		@Override
+		public double distance(double [] x, int xi, double [] y, int yi) {
+			return ciede2000(x[xi], x[xi+1], x[xi+2], x[xi+3], y[yi], y[yi+1], y[yi+2], y[yi+3]);
+		}
+	};
+
+	// D65 white point
+	private static final double XN = 0.95047;
+	private static final double YN = 1.0;
+	private static final double ZN = 1.08883;
+
+	// sRGB channel value to linear light
+	private static final double [] LINEAR = new double [256];
+	static {
+		for(int i=0; i<256; i++) {
+			double v = i / 255.0;
+			LINEAR[i] = v <= 0.04045 ? v / 12.92 : Math.pow((v + 0.055) / 1.055, 2.4);
+		}
+	}
+
+	private final String title;
+	private final int dimensions;
+
+	private ColorMetric(String title, int dimensions) {
+		this.title = title;
+		this.dimensions = dimensions;
+	}
+
+	// number of values per transformed color
+	public int getDimensions() {
+		return dimensions;
+	}
+
+	// writes the transformed rgb color to out at offset o
+	public abstract void transform(int rgb, double [] out, int o);
+
+	// distance of two transformed colors, smaller is closer
+	public abstract double distance(double [] a, int ai, double [] b, int bi);
+
+	// name on the command line, e.g. weighted-rgb
+	public String getId() {
+		return name().toLowerCase().replace('_', '-');
+	}
+
+	// metric for a command line name, null if there is none
+	public static ColorMetric forId(String id) {
+		for(ColorMetric m : values()) {
+			if(m.getId().equalsIgnoreCase(id))
+				return m;
+		}
+		return null;
+	}
+
+	@Override
+	public String toString() {
+		return title;
+	}
+
+	private static double squared(double [] a, int ai, double [] b, int bi) {
+		double d0 = a[ai] - b[bi];
+		double d1 = a[ai+1] - b[bi+1];
+		double d2 = a[ai+2] - b[bi+2];
+		return d0 * d0 + d1 * d1 + d2 * d2;
+	}
+
+	private static void toLab(int rgb, double [] out, int o) {
+		double r = LINEAR[(rgb >> 16) & 0xFF];
+		double g = LINEAR[(rgb >> 8) & 0xFF];
+		double b = LINEAR[rgb & 0xFF];
+
+		double x = labF((0.4124564 * r + 0.3575761 * g + 0.1804375 * b) / XN);
+		double y = labF((0.2126729 * r + 0.7151522 * g + 0.0721750 * b) / YN);
+		double z = labF((0.0193339 * r + 0.1191920 * g + 0.9503041 * b) / ZN);
+
+		out[o] = 116.0 * y - 16.0;
+		out[o+1] = 500.0 * (x - y);
+		out[o+2] = 200.0 * (y - z);
+	}
+
+	private static double labF(double t) {
+		if(t > 216.0 / 24389.0)
+			return Math.cbrt(t);
+		return (24389.0 / 27.0 * t + 16.0) / 116.0;
+	}
+
+	// CIEDE2000 after Sharma, Wu and Dalal, with kL = kC = kH = 1
+	private static double ciede2000(double l1, double a1, double b1, double c1, double l2, double a2, double b2, double c2) {
+		double cMean = (c1 + c2) / 2.0;
+		double cMean7 = Math.pow(cMean, 7);
+		double g = 0.5 * (1.0 - Math.sqrt(cMean7 / (cMean7 + 6103515625.0)));
+
+		double a1p = (1.0 + g) * a1;
+		double a2p = (1.0 + g) * a2;
+		double c1p = Math.sqrt(a1p * a1p + b1 * b1);
+		double c2p = Math.sqrt(a2p * a2p + b2 * b2);
+		double h1p = hueAngle(b1, a1p);
+		double h2p = hueAngle(b2, a2p);
+
+		double dL = l2 - l1;
+		double dC = c2p - c1p;
+		double dh = 0.0;
+		if(c1p * c2p != 0.0) {
+			dh = h2p - h1p;
+			if(dh > 180.0)
+				dh -= 360.0;
+			else if(dh < -180.0)
+				dh += 360.0;
+		}
+		double dH = 2.0 * Math.sqrt(c1p * c2p) * Math.sin(Math.toRadians(dh / 2.0));
+
+		double lMean = (l1 + l2) / 2.0;
+		double cpMean = (c1p + c2p) / 2.0;
+		double hMean = h1p + h2p;
+		if(c1p * c2p != 0.0) {
+			if(Math.abs(h1p - h2p) <= 180.0)
+				hMean /= 2.0;
+			else if(hMean < 360.0)
+				hMean = (hMean + 360.0) / 2.0;
+			else
+				hMean = (hMean - 360.0) / 2.0;
+		}
+
+		double t = 1.0 - 0.17 * Math.cos(Math.toRadians(hMean - 30.0))
+			+ 0.24 * Math.cos(Math.toRadians(2.0 * hMean))
+			+ 0.32 * Math.cos(Math.toRadians(3.0 * hMean + 6.0))
+			- 0.20 * Math.cos(Math.toRadians(4.0 * hMean - 63.0));
+
+		double dTheta = 30.0 * Math.exp(-((hMean - 275.0) / 25.0) * ((hMean - 275.0) / 25.0));
+		double cpMean7 = Math.pow(cpMean, 7);
+		double rC = 2.0 * Math.sqrt(cpMean7 / (cpMean7 + 6103515625.0));
+		double lm50 = (lMean - 50.0) * (lMean - 50.0);
+		double sL = 1.0 + 0.015 * lm50 / Math.sqrt(20.0 + lm50);
+		double sC = 1.0 + 0.045 * cpMean;
+		double sH = 1.0 + 0.015 * cpMean * t;
+		double rT = -Math.sin(Math.toRadians(2.0 * dTheta)) * rC;
+
+		double fL = dL / sL;
+		double fC = dC / sC;
+		double fH = dH / sH;
+		return fL * fL + fC * fC + fH * fH + rT * fC * fH;
+	}
+
+	// hue angle in degrees, 0 until 360
+	private static double hueAngle(double b, double a) {
+		if(a == 0.0 && b == 0.0)
+			return 0.0;
+		double h = Math.toDegrees(Math.atan2(b, a));
+		return h < 0.0 ? h + 360.0 : h;
+	}
+}
@@ -0,0 +1,341 @@
+/*
+PalReplacer - Copyright (c) 2012 Hendrik Iben - hendrik [dot] iben <at> googlemail [dot] com
+
+Permission is hereby granted, free of charge, to any person obtaining a copy of
+this software and associated documentation files (the "Software"), to deal in
+the Software without restriction, including without limitation the rights to
+use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+of the Software, and to permit persons to whom the Software is furnished to do
+so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+
+
+package palreplacer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+
+import palreplacer.ConversionOptions.Overwrite;
+import palreplacer.Util.PaletteExtractionException;
+
+// batch conversion without user interface
+// runs with java.awt.headless=true and never touches Swing or AWT windows,
+// so it can be used on build machines without a display
+public class CommandLine implements BatchConverter.Listener {
+	private static final String usage =
+		"usage: java -jar PalReplacer.jar [options] -p <palette> <input>...\n" +
+		"  inputs are files, directories (all images inside) or glob patterns (*.png, src/**.gif)\n" +
+		"options:\n" +
+		"  -p, --palette <file>      palette (.pal, .gpl or image with palette)\n" +
+		"  -a, --palette-alpha       raw palette contains alpha (ARGB)\n" +
+		"  -o, --outdir <dir>        output directory (default: current directory)\n" +
+		"  -f, --format <pattern>    output file name, first parameter is the name,\n" +
+		"                            second the extension (default: %s.%s)\n" +
+		"  -w, --overwrite <no|yes>  overwrite existing files (default: no)\n" +
+		"  -d, --dither              dither instead of mapping each pixel\n" +
+		"  -D, --dither-method <m>   dither with floyd-steinberg (default), sierra-lite,\n" +
+		"                            atkinson or ordered with bayer-2, bayer-4, bayer-8\n" +
+		"                            or blue-noise\n" +
+		"  -m, --metric <m>          color distance: weighted-rgb (default), euclidean-rgb,\n" +
+		"                            cie76 or ciede2000\n" +
+		"  -t, --threads <n>         number of worker threads (default: number of processors)\n" +
+		"  -i, --incremental         skip inputs whose output is up to date, rebuild\n" +
+		"                            outdated outputs of earlier runs regardless of -w\n" +
+		"  -P, --pipeline <r:m:e>    decode, map and encode on separate threads with\n" +
+		"                            r readers, m mappers and e encoders\n" +
+		"      --imageio             write all formats with ImageIO\n" +
+		"      --off-heap <m>        keep indices of large images outside of the heap,\n" +
+		"                            in direct memory or a mapped scratch file (direct|mapped)\n" +
+		"      --scratch <dir>       directory for mapped scratch files (default: temp)\n" +
+		"  -r, --report <file>       write times, throughput and errors per file as JSON\n" +
+		"  -q, --quiet               only print errors\n" +
+		"  -h, --help                show this help\n";
+
+	private PrintStream out = System.out;
+	private PrintStream err = System.err;
+	private boolean quiet = false;
+
+	public static class UsageException extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+
+		public UsageException(String msg) {
+			super(msg);
+		}
+	};
+
+	// returns the exit code: 0 on success, 1 if files failed, 2 on usage errors
+	public int run(String...args) {
+		ConversionOptions options = new ConversionOptions();
+		options.overwrite = Overwrite.NO;
+
+		File paletteFile = null;
+		File reportFile = null;
+		boolean paletteAlpha = false;
+		ColorMetric metric = ColorMetric.WEIGHTED_RGB;
+		List<File> inputs = new ArrayList<File>();
+
+		try {
+			for(int i=0; i<args.length; i++) {
+				String arg = args[i];
+
+				if(arg.equals("-h") || arg.equals("--help")) {
+					out.print(usage);
+					return 0;
+				} else if(arg.equals("-p") || arg.equals("--palette")) {
+					paletteFile = new File(value(args, ++i, arg));
+				} else if(arg.equals("-a") || arg.equals("--palette-alpha")) {
+					paletteAlpha = true;
+				} else if(arg.equals("-o") || arg.equals("--outdir")) {
+					options.outdir = new File(value(args, ++i, arg));
+				} else if(arg.equals("-f") || arg.equals("--format")) {
+					options.outFormat = value(args, ++i, arg);
+				} else if(arg.equals("-w") || arg.equals("--overwrite")) {
+					String v = value(args, ++i, arg).toLowerCase();
+					if(v.equals("yes"))
+						options.overwrite = Overwrite.YES;
+					else if(v.equals("no"))
+						options.overwrite = Overwrite.NO;
+					else
+						throw new UsageException("overwrite must be 'yes' or 'no'");
+				} else if(arg.equals("-d") || arg.equals("--dither")) {
+					options.noDither = false;
+				} else if(arg.equals("-D") || arg.equals("--dither-method")) {
+					String v = value(args, ++i, arg);
+					options.dither = DitherMethod.forId(v);
+					if(options.dither == null)
+						throw new UsageException("unknown dither method " + v);
+					options.noDither = false;
+				} else if(arg.equals("-m") || arg.equals("--metric")) {
+					String v = value(args, ++i, arg);
+					metric = ColorMetric.forId(v);
+					if(metric == null)
+						throw new UsageException("unknown color metric " + v);
+				} else if(arg.equals("-t") || arg.equals("--threads")) {
+					options.threads = intValue(args, ++i, arg);
+					if(options.threads < 1)
+						throw new UsageException("thread count must be positive");
+				} else if(arg.equals("-P") || arg.equals("--pipeline")) {
+					String [] widths = value(args, ++i, arg).split(":");
+					if(widths.length != 3)
+						throw new UsageException("pipeline needs readers:mappers:encoders");
+					try {
+						options.readers = Integer.parseInt(widths[0]);
+						options.threads = Integer.parseInt(widths[1]);
+						options.encoders = Integer.parseInt(widths[2]);
+					} catch(NumberFormatException nfe) {
+						throw new UsageException("invalid number for " + arg);
+					}
+					if(options.readers < 1 || options.threads < 1 || options.encoders < 1)
+						throw new UsageException("thread count must be positive");
+					options.pipelined = true;
+				} else if(arg.equals("-i") || arg.equals("--incremental")) {
+					options.incremental = true;
+				} else if(arg.equals("--imageio")) {
+					options.directEncoder = false;
+				} else if(arg.equals("--off-heap")) {
+					String mode = value(args, ++i, arg);
+					if(mode.equals("direct"))
+						options.offHeap = ConversionOptions.OffHeap.DIRECT;
+					else if(mode.equals("mapped"))
+						options.offHeap = ConversionOptions.OffHeap.MAPPED;
+					else
+						throw new UsageException("off-heap must be direct or mapped");
+				} else if(arg.equals("--scratch")) {
+					options.scratchDir = new File(value(args, ++i, arg));
+				} else if(arg.equals("-r") || arg.equals("--report")) {
+					reportFile = new File(value(args, ++i, arg));
+				} else if(arg.equals("-q") || arg.equals("--quiet")) {
+					quiet = true;
+				} else if(arg.startsWith("-") && arg.length() > 1) {
+					throw new UsageException("unknown option " + arg);
+				} else {
+					inputs.addAll(expandInput(arg));
+				}
+			}
+
+			if(paletteFile == null)
+				throw new UsageException("no palette given");
+			if(inputs.isEmpty())
+				throw new UsageException("no input files");
+		} catch(UsageException ue) {
+			err.println(ue.getMessage());
+			err.print(usage);
+			return 2;
+		} catch(IOException ioe) {
+			err.println("Error reading inputs: " + ioe.getMessage());
+			return 2;
+		}
+
+		if(!options.outdir.isDirectory()) {
+			err.println("Output directory does not exist: " + options.outdir.getPath());
+			return 2;
+		}
+
+		CompiledPalette palette;
+		try {
+			boolean [] alphaPal = new boolean [] { paletteAlpha };
+			int [] paldata = Util.loadPalette(paletteFile, alphaPal);
+			palette = new CompiledPalette(paldata, alphaPal[0], metric);
+		} catch(PaletteExtractionException pee) {
+			err.println("Could not extract palette: " + pee.getMessage());
+			return 2;
+		} catch(IOException ioe) {
+			err.println("Error reading palette: " + ioe.getMessage());
+			return 2;
+		}
+
+		BatchConverter converter = new BatchConverter(palette, options, this);
+		boolean ok = converter.run(inputs);
+
+		for(String error : converter.getErrors())
+			err.println(error);
+
+		if(reportFile != null) {
+			try {
+				converter.getStats().writeJson(reportFile);
+			} catch(IOException ioe) {
+				err.println("Error writing report: " + ioe.getMessage());
+				ok = false;
+			}
+		}
+
+		if(!quiet) {
+			out.print(converter.getStats().getSummary());
+			ConversionManifest manifest = converter.getManifest();
+			if(manifest != null)
+				out.format("incremental: %d up to date, %d out of date, %d ms saved\n", manifest.getHits(), manifest.getMisses(), manifest.getSavedMillis());
+			ConversionPipeline pipeline = converter.getPipeline();
+			if(pipeline != null) {
+				for(ConversionPipeline.StageStats stage : pipeline.getStageStats())
+					out.println(stage);
+			}
+		}
+
+		return ok ? 0 : 1;
+	}
+
+	private static String value(String [] args, int i, String option) {
+		if(i >= args.length)
+			throw new UsageException("missing value for " + option);
+		return args[i];
+	}
+
+	private static int intValue(String [] args, int i, String option) {
+		try {
+			return Integer.parseInt(value(args, i, option));
+		} catch(NumberFormatException nfe) {
+			throw new UsageException("invalid number for " + option);
+		}
+	}
+
+	private static boolean isGlob(String s) {
+		for(char c : "*?[{".toCharArray()) {
+			if(s.indexOf(c) >= 0)
+				return true;
+		}
+		return false;
+	}
+
+	// files, all images in a directory or the files matching a glob
+	// matches are sorted so the batch order does not depend on the file system
+	public static List<File> expandInput(String arg) throws IOException {
+		List<File> files = new ArrayList<File>();
+
+		if(!isGlob(arg)) {
+			File f = new File(arg);
+			if(f.isDirectory()) {
+				File [] content = f.listFiles();
+				if(content != null) {
+					Arrays.sort(content);
+					for(File cf : content) {
+						if(cf.isFile() && Util.fileFilterImage.accept(cf))
+							files.add(cf);
+					}
+				}
+			} else {
+				files.add(f);
+			}
+			return files;
+		}
+
+		// split into the directory part before the first wildcard and the pattern
+		String norm = arg.replace(File.separatorChar, '/');
+		int wildcard = 0;
+		while(!isGlob(norm.substring(0, wildcard+1)))
+			wildcard++;
+		int slash = norm.lastIndexOf('/', wildcard);
+
+		String baseName = slash < 0 ? "." : (slash == 0 ? "/" : norm.substring(0, slash));
+		String pattern = norm.substring(slash+1);
+
+		final Path base = new File(baseName).toPath();
+		final PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + pattern);
+		final List<File> matches = files;
+
+		if(!Files.isDirectory(base))
+			return files;
+
+		// only descend as deep as the pattern can match
+		int depth = Integer.MAX_VALUE;
+		if(!pattern.contains("**")) {
+			depth = 1;
+			for(char c : pattern.toCharArray()) {
+				if(c == '/')
+					depth++;
+			}
+		}
+
+		Files.walkFileTree(base, EnumSet.noneOf(FileVisitOption.class), depth, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+				if(attrs.isRegularFile() && matcher.matches(base.relativize(file)))
+					matches.add(file.toFile());
+				return FileVisitResult.CONTINUE;
+			}
+		});
+
+		Collections.sort(files);
+		return files;
+	}
+
+	@Override
+	public boolean confirmOverwrite(File outFile) {
+		// never asked, overwrite is either yes or no
+		return false;
+	}
+
+	@Override
+	public void fileFinished(int index, File input, String error) {
+		// errors are printed when the batch is done
+	}
+
+	public static void main(String...args) {
+		System.setProperty("java.awt.headless", "true");
+		System.exit(new CommandLine().run(args));
+	}
+}
@@ -0,0 +1,178 @@
+/*
+PalReplacer - Copyright (c) 2012 Hendrik Iben - hendrik [dot] iben <at> googlemail [dot] com
+
+Permission is hereby granted, free of charge, to any person obtaining a copy of
+this software and associated documentation files (the "Software"), to deal in
+the Software without restriction, including without limitation the rights to
+use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+of the Software, and to permit persons to whom the Software is furnished to do
+so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+
+
+package palreplacer;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferUShort;
+import java.awt.image.IndexColorModel;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+
+// target palette prepared for conversion
+// holds the color model and the matcher, built once per batch and shared
+// read-only by all conversion threads
+// Palettes with more than 256 entries use 16 bit indices (short rasters).
+public class CompiledPalette {
+	// bits per channel of the dither table
+	public static final int DITHER_BITS = 5;
+
+	private final int [] rgb;
+	private final boolean hasAlpha;
+	private final ColorMetric metric;
+	private final int bits;
+	private final IndexColorModel icm;
+	private final PaletteMatcher matcher;
+	private final PaletteMatcher search;
+	private final ExactColorTable exact;
+	// built on first use
+	private volatile char [] ditherTable;
+
+	public CompiledPalette(int [] entries, boolean hasAlpha) {
+		this(entries, hasAlpha, ColorMetric.WEIGHTED_RGB);
+	}
+
+	public CompiledPalette(int [] entries, boolean hasAlpha, ColorMetric metric) {
+		ConversionEvents.PaletteCompile event = new ConversionEvents.PaletteCompile();
+		event.begin();
+
+		this.rgb = entries.clone();
+		this.hasAlpha = hasAlpha;
+		this.metric = metric;
+
+		bits = 32 - Integer.numberOfLeadingZeros(rgb.length - 1);
+		int type = bits > 8 ? DataBuffer.TYPE_USHORT : DataBuffer.TYPE_BYTE;
+		icm = new IndexColorModel(bits, rgb.length, rgb, 0, hasAlpha, -1, type);
+
+		search = Util.createPaletteSearch(rgb, metric);
+		matcher = Util.createLookup(search, 8);
+		exact = new ExactColorTable(rgb);
+
+		event.end();
+		if(event.shouldCommit()) {
+			event.paletteSize = rgb.length;
+			event.alpha = hasAlpha;
+			event.metric = metric.getId();
+			event.search = search.getClass().getSimpleName();
+			event.commit();
+		}
+	}
+
+	public int [] getEntries() {
+		return rgb;
+	}
+
+	public boolean hasAlpha() {
+		return hasAlpha;
+	}
+
+	public ColorMetric getMetric() {
+		return metric;
+	}
+
+	public int size() {
+		return rgb.length;
+	}
+
+	public int getBits() {
+		return bits;
+	}
+
+	public IndexColorModel getColorModel() {
+		return icm;
+	}
+
+	// true if indices do not fit in a byte
+	public boolean isShortIndexed() {
+		return bits > 8;
+	}
+
+	// creates an empty indexed image for this palette
+	// the raster has one byte or short per pixel without padding
+	public BufferedImage createImage(int w, int h) {
+		if(!isShortIndexed())
+			return new BufferedImage(w, h, BufferedImage.TYPE_BYTE_INDEXED, icm);
+
+		WritableRaster raster = Raster.createInterleavedRaster(DataBuffer.TYPE_USHORT, w, h, 1, null);
+		return new BufferedImage(icm, raster, false, null);
+	}
+
+	// true if images of this palette can be written in format without losing colors
+	// images with 16 bit indices become (A)RGB, which GIF or JPEG can not store
+	public boolean canWrite(String format) {
+		if(!isShortIndexed())
+			return true;
+
+		String f = format.toLowerCase();
+		if(f.equals("png") || f.equals("tif") || f.equals("tiff"))
+			return true;
+		return f.equals("bmp") && !hasAlpha;
+	}
+
+	// image formats only know palettes up to 256 colors, images with 16 bit
+	// indices are written with the palette colors as (A)RGB pixels
+	public BufferedImage toWritableImage(BufferedImage indexed) {
+		if(!isShortIndexed())
+			return indexed;
+
+		int w = indexed.getWidth();
+		int h = indexed.getHeight();
+		BufferedImage out = new BufferedImage(w, h, hasAlpha ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB);
+		short [] indices = ((DataBufferUShort)indexed.getRaster().getDataBuffer()).getData();
+		int [] argb = new int [w];
+		for(int j=0; j<h; j++) {
+			int o = j * w;
+			for(int i=0; i<w; i++)
+				argb[i] = rgb[indices[o+i] & 0xFFFF];
+			out.setRGB(0, j, w, 1, argb, 0, w);
+		}
+
+		return out;
+	}
+
+	public PaletteMatcher getMatcher() {
+		return matcher;
+	}
+
+	// palette colors by value, checked before the matcher for pixels that are
+	// already palette colors
+	public ExactColorTable getExactTable() {
+		return exact;
+	}
+
+	// complete lookup table with DITHER_BITS per channel for dithering
+	// cells hold the best index for their center color, the diffused error
+	// makes up for the coarser cells
+	public char [] getDitherTable() {
+		char [] table = ditherTable;
+		if(table == null) {
+			synchronized (this) {
+				table = ditherTable;
+				if(table == null)
+					ditherTable = table = ColorLookupTable.createTable(search, DITHER_BITS);
+			}
+		}
+		return table;
+	}
+}
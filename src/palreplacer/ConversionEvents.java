@@ -0,0 +1,132 @@
+/*
+PalReplacer - Copyright (c) 2012 Hendrik Iben - hendrik [dot] iben <at> googlemail [dot] com
+
+Permission is hereby granted, free of charge, to any person obtaining a copy of
+this software and associated documentation files (the "Software"), to deal in
+the Software without restriction, including without limitation the rights to
+use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+of the Software, and to permit persons to whom the Software is furnished to do
+so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+
+
+package palreplacer;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+// Java Flight Recorder events of a conversion
+// events are cheap while no recording is running: begin, end and the stores of
+// plain fields are all that happens, anything that needs work to compute is only
+// filled in when shouldCommit() returns true.
+public final class ConversionEvents {
+	private ConversionEvents() {
+	}
+
+	@Name("palreplacer.FileConversion")
+	@Label("File Conversion")
+	@Category("PalReplacer")
+	@Description("Conversion of one input file, from reading it until the output is written. Pipelined conversions end on the encoding thread.")
+	public static class FileConversion extends Event {
+		@Label("Input")
+		public String input;
+
+		@Label("Output")
+		public String output;
+
+		@Label("Width")
+		public int width;
+
+		@Label("Height")
+		public int height;
+
+		@Label("Source Color Model")
+		public String sourceType;
+
+		@Label("Palette Size")
+		public int paletteSize;
+
+		@Label("Route")
+		@Description("decode (decode, map, encode), rewrite (indexed input remapped without decoding) or strips (image larger than the heap)")
+		public String route;
+
+		@Label("Status")
+		public String status;
+
+		@Label("Error")
+		public String error;
+	}
+
+	@Name("palreplacer.PaletteCompile")
+	@Label("Palette Compilation")
+	@Category("PalReplacer")
+	@Description("Building the color model and the palette search of a target palette")
+	public static class PaletteCompile extends Event {
+		@Label("Palette Size")
+		public int paletteSize;
+
+		@Label("Alpha")
+		public boolean alpha;
+
+		@Label("Color Metric")
+		public String metric;
+
+		@Label("Search")
+		public String search;
+	}
+
+	@Name("palreplacer.LookupTableBuild")
+	@Label("Lookup Table Build")
+	@Category("PalReplacer")
+	@Description("Filling a complete table of palette indices, the dither table or the index map of a source palette")
+	public static class LookupTableBuild extends Event {
+		@Label("Table")
+		public String table;
+
+		@Label("Cells")
+		public int cells;
+
+		@Label("Palette Size")
+		public int paletteSize;
+	}
+
+	@Name("palreplacer.Encode")
+	@Label("Encode")
+	@Category("PalReplacer")
+	@Description("Writing an indexed image to its output file")
+	public static class Encode extends Event {
+		@Label("Output")
+		public String output;
+
+		@Label("Format")
+		public String format;
+
+		@Label("Encoder")
+		public String encoder;
+
+		@Label("Width")
+		public int width;
+
+		@Label("Height")
+		public int height;
+
+		@Label("Bytes Written")
+		@DataAmount
+		public long bytes;
+	}
+}
@@ -0,0 +1,69 @@
+/*
+PalReplacer - Copyright (c) 2012 Hendrik Iben - hendrik [dot] iben <at> googlemail [dot] com
+
+Permission is hereby granted, free of charge, to any person obtaining a copy of
+this software and associated documentation files (the "Software"), to deal in
+the Software without restriction, including without limitation the rights to
+use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+of the Software, and to permit persons to whom the Software is furnished to do
+so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+
+
+package palreplacer;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+
+// a single file on its way through the conversion
+// a job is only handled by one thread at a time, handing it over through
+// a queue or a pool makes the fields visible to the next thread
+public class ConversionJob {
+	public final int index;
+	public final File input;
+	public final File output;
+
+	// manifest key for incremental conversion, null if not known yet
+	public String key;
+	// decoded source, replaced by the indexed result after mapping
+	public BufferedImage image;
+	// off-heap result instead of image for large images (see ConversionOptions.offHeap)
+	public IndexBuffer indices;
+	public long pixels;
+	// memory budget held in a pipeline (see ConversionPipeline.reserve)
+	public int budgetBlocks;
+	public long startNanos;
+	// flight recorder event, from decoding until the file is done
+	public ConversionEvents.FileConversion event;
+
+	public ConversionJob(int index, File input, File output) {
+		this.index = index;
+		this.input = input;
+		this.output = output;
+	}
+
+	// drops the image and the off-heap indices of a job that will not be finished
+	public void release() {
+		image = null;
+		if(indices != null) {
+			try {
+				indices.close();
+			} catch (IOException e) {
+				// only the scratch file is left behind, it is deleted on exit
+			}
+			indices = null;
+		}
+	}
+}
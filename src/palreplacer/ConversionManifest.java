@@ -0,0 +1,212 @@
+/*
+PalReplacer - Copyright (c) 2012 Hendrik Iben - hendrik [dot] iben <at> googlemail [dot] com
+
+Permission is hereby granted, free of charge, to any person obtaining a copy of
+this software and associated documentation files (the "Software"), to deal in
+the Software without restriction, including without limitation the rights to
+use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+of the Software, and to permit persons to whom the Software is furnished to do
+so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+
+
+package palreplacer;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// remembers which input produced an output file for incremental conversion
+// the manifest lives in the output directory and maps each output name to a
+// key hashed from the input content, the palette, the conversion options and
+// the output name. An output is up to date if the key matches and the output
+// file was not changed since it was written.
+public class ConversionManifest {
+	public static final String FILE_NAME = ".palreplacer-manifest";
+	private static final String HEADER = "# PalReplacer conversion manifest v1";
+
+	private static class Entry {
+		final String key;
+		final long millis;
+		final long length;
+		final long modified;
+
+		Entry(String key, long millis, long length, long modified) {
+			this.key = key;
+			this.millis = millis;
+			this.length = length;
+			this.modified = modified;
+		}
+	}
+
+	private final File file;
+	private final byte [] settingsDigest;
+	private final Map<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+
+	private final AtomicInteger hits = new AtomicInteger();
+	private final AtomicInteger misses = new AtomicInteger();
+	private final AtomicLong savedMillis = new AtomicLong();
+
+	// loads the manifest of the output directory, if any
+	public ConversionManifest(File outdir, CompiledPalette palette, ConversionOptions options) throws IOException {
+		this.file = new File(outdir, FILE_NAME);
+
+		MessageDigest md = newDigest();
+		for(int c : palette.getEntries()) {
+			md.update((byte)(c >> 24));
+			md.update((byte)(c >> 16));
+			md.update((byte)(c >> 8));
+			md.update((byte)c);
+		}
+		md.update((byte)(palette.hasAlpha() ? 1 : 0));
+		if(palette.getMetric() != ColorMetric.WEIGHTED_RGB)
+			md.update(("metric=" + palette.getMetric().getId()).getBytes("UTF-8"));
+		md.update(options.getOutputKey().getBytes("UTF-8"));
+		settingsDigest = md.digest();
+
+		if(file.exists())
+			load();
+	}
+
+	private static MessageDigest newDigest() {
+		try {
+			return MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private void load() throws IOException {
+		BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+		try {
+			String line;
+			while( (line = br.readLine()) != null) {
+				if(line.startsWith("#"))
+					continue;
+				String [] parts = line.split("\t");
+				if(parts.length != 5)
+					continue;
+				try {
+					entries.put(parts[0], new Entry(parts[1], Long.parseLong(parts[2]), Long.parseLong(parts[3]), Long.parseLong(parts[4])));
+				} catch(NumberFormatException nfe) {
+					// ignore broken lines, the output is simply converted again
+				}
+			}
+		} finally {
+			br.close();
+		}
+	}
+
+	// writes the manifest, replacing the old file when complete
+	public void save() throws IOException {
+		List<String> names = new ArrayList<String>(entries.keySet());
+		Collections.sort(names);
+
+		File tmp = new File(file.getParentFile(), FILE_NAME + ".tmp");
+		PrintWriter pw = new PrintWriter(new OutputStreamWriter(new FileOutputStream(tmp), "UTF-8"));
+		try {
+			pw.println(HEADER);
+			for(String name : names) {
+				Entry e = entries.get(name);
+				pw.print(name + "\t" + e.key + "\t" + e.millis + "\t" + e.length + "\t" + e.modified + "\n");
+			}
+		} finally {
+			pw.close();
+		}
+		if(pw.checkError())
+			throw new IOException("Error writing " + tmp.getPath());
+
+		if(!tmp.renameTo(file)) {
+			file.delete();
+			if(!tmp.renameTo(file))
+				throw new IOException("Unable to replace " + file.getPath());
+		}
+	}
+
+	// key for converting input to output, reads the whole input
+	public String getKey(File input, File output) throws IOException {
+		MessageDigest md = newDigest();
+		md.update(settingsDigest);
+		md.update(output.getName().getBytes("UTF-8"));
+
+		InputStream is = new FileInputStream(input);
+		try {
+			byte [] buffer = new byte [65536];
+			int r;
+			while( (r = is.read(buffer)) > 0)
+				md.update(buffer, 0, r);
+		} finally {
+			is.close();
+		}
+
+		StringBuilder sb = new StringBuilder();
+		for(byte b : md.digest())
+			sb.append(String.format("%02x", b & 0xFF));
+		return sb.toString();
+	}
+
+	// checks if output was written from the same input with the same settings
+	// counts a hit or a miss
+	public boolean isUpToDate(String key, File output) {
+		Entry e = entries.get(output.getName());
+		if(e != null && e.key.equals(key) && output.length() == e.length && output.lastModified() == e.modified) {
+			hits.incrementAndGet();
+			savedMillis.addAndGet(e.millis);
+			return true;
+		}
+
+		misses.incrementAndGet();
+		return false;
+	}
+
+	// true if output is unchanged since it was written by a recorded conversion,
+	// such an output may be replaced regardless of the overwrite setting
+	public boolean isRecorded(File output) {
+		Entry e = entries.get(output.getName());
+		return e != null && output.length() == e.length && output.lastModified() == e.modified;
+	}
+
+	// records a written output
+	public void record(String key, File output, long millis) {
+		entries.put(output.getName(), new Entry(key, millis, output.length(), output.lastModified()));
+	}
+
+	public int getHits() {
+		return hits.get();
+	}
+
+	public int getMisses() {
+		return misses.get();
+	}
+
+	// sum of the conversion times of all skipped files
+	public long getSavedMillis() {
+		return savedMillis.get();
+	}
+}
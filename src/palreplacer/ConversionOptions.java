@@ -0,0 +1,71 @@
+/*
+PalReplacer - Copyright (c) 2012 Hendrik Iben - hendrik [dot] iben <at> googlemail [dot] com
+
+Permission is hereby granted, free of charge, to any person obtaining a copy of
+this software and associated documentation files (the "Software"), to deal in
+the Software without restriction, including without limitation the rights to
+use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+of the Software, and to permit persons to whom the Software is furnished to do
+so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+
+
+package palreplacer;
+
+import java.io.File;
+
+// settings for a conversion batch
+public class ConversionOptions {
+	public static enum Overwrite { NO, ASK, YES };
+	public static enum OffHeap { NONE, DIRECT, MAPPED };
+
+	public File outdir = new File(".");
+	// first parameter is the file name, second the extension
+	public String outFormat = "%s.%s";
+	public Overwrite overwrite = Overwrite.ASK;
+	public boolean noDither = true;
+	// used if noDither is false
+	public DitherMethod dither = DitherMethod.FLOYD_STEINBERG;
+	// number of files converted at the same time, mapping threads when pipelined
+	public int threads = Runtime.getRuntime().availableProcessors();
+	// decode, map and encode on separate threads
+	public boolean pipelined = false;
+	public int readers = 2;
+	public int encoders = 2;
+	// map large images in bands on all threads
+	public boolean splitImages = true;
+	// write PNG and GIF with IndexedImageWriter instead of ImageIO
+	public boolean directEncoder = true;
+	// remap indexed PNG and GIF inputs without decoding them (see PaletteRewriter)
+	public boolean rewriteIndexed = true;
+	// images with more pixels are converted in strips (see StripConverter)
+	public long streamPixels = Runtime.getRuntime().maxMemory() / 16;
+	public int stripPixels = 1 << 22;
+	// indices of images with more pixels are kept outside of the heap between
+	// mapping and encoding, in direct memory or in a mapped file in scratchDir
+	// only for PNG and GIF outputs with at most 256 colors (see IndexBuffer)
+	public OffHeap offHeap = OffHeap.NONE;
+	public long offHeapPixels = 1 << 24;
+	// null for the temp directory
+	public File scratchDir = null;
+	// memory for idle target images and buffers kept for the next files (see BufferPool), 0 to disable
+	public long poolBytes = Runtime.getRuntime().maxMemory() / 16;
+	// skip inputs whose output is up to date (see ConversionManifest)
+	public boolean incremental = false;
+
+	// describes all settings that change the content of an output file
+	public String getOutputKey() {
+		return "dither=" + (noDither ? "none" : dither.getId());
+	}
+}
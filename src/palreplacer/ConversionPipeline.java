@@ -0,0 +1,311 @@
+/*
+PalReplacer - Copyright (c) 2012 Hendrik Iben - hendrik [dot] iben <at> googlemail [dot] com
+
+Permission is hereby granted, free of charge, to any person obtaining a copy of
+this software and associated documentation files (the "Software"), to deal in
+the Software without restriction, including without limitation the rights to
+use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+of the Software, and to permit persons to whom the Software is furnished to do
+so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+
+
+package palreplacer;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// runs decoding, mapping and encoding of different files at the same time
+// each stage has its own threads and takes jobs from the queue in front of it.
+// Decoded images wait in memory until they are encoded, the pixels of all
+// images from decoding until encoding are limited by a budget: a reader
+// reserves the pixels of an image from its header before decoding it (see
+// reserve) and blocks until an encoder finished an image if that would exceed
+// the budget. An image larger than the whole budget is still processed, alone.
+public class ConversionPipeline {
+	public interface Steps {
+		// reads job.image, returns false if the job is already finished
+		// calls reserve before decoding an image into memory
+		public boolean decode(ConversionJob job) throws IOException;
+
+		public void map(ConversionJob job) throws IOException;
+
+		public void encode(ConversionJob job) throws IOException;
+
+		public void failed(ConversionJob job, String error);
+	}
+
+	// budget permits are counted in blocks of pixels
+	private static final int PIXEL_BLOCK = 1024;
+
+	// marks the end of a queue
+	private static final ConversionJob END = new ConversionJob(-1, null, null);
+
+	public static class StageStats {
+		private final String name;
+		private final int threads;
+		private final BlockingQueue<ConversionJob> queue = new LinkedBlockingQueue<ConversionJob>();
+		private final AtomicInteger maxQueueDepth = new AtomicInteger();
+		private final AtomicInteger jobs = new AtomicInteger();
+		private final AtomicLong pixels = new AtomicLong();
+		private final AtomicLong busyNanos = new AtomicLong();
+
+		StageStats(String name, int threads) {
+			this.name = name;
+			this.threads = threads;
+		}
+
+		void put(ConversionJob job) {
+			queue.add(job);
+			int depth = queue.size();
+			int max;
+			while(depth > (max = maxQueueDepth.get()) && !maxQueueDepth.compareAndSet(max, depth)) {
+				// retry
+			}
+		}
+
+		void done(ConversionJob job, long nanos) {
+			jobs.incrementAndGet();
+			pixels.addAndGet(job.pixels);
+			busyNanos.addAndGet(nanos);
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public int getThreads() {
+			return threads;
+		}
+
+		// jobs waiting for this stage
+		public int getQueueDepth() {
+			int depth = queue.size();
+			for(ConversionJob job : queue) {
+				if(job == END)
+					depth--;
+			}
+			return depth;
+		}
+
+		public int getMaxQueueDepth() {
+			return maxQueueDepth.get();
+		}
+
+		public int getJobs() {
+			return jobs.get();
+		}
+
+		public long getPixels() {
+			return pixels.get();
+		}
+
+		// summed over all threads of the stage
+		public long getBusyMillis() {
+			return busyNanos.get() / 1000000L;
+		}
+
+		// pixels per second of a single thread while busy
+		public double getPixelsPerSecond() {
+			long nanos = busyNanos.get();
+			return nanos == 0 ? 0.0 : pixels.get() * 1e9 / nanos;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%s: %d threads, %d files, %.1f Mpx/s per thread, busy %d ms, max queue %d",
+				name, threads, getJobs(), getPixelsPerSecond() / 1e6, getBusyMillis(), getMaxQueueDepth());
+		}
+	}
+
+	private final Steps steps;
+	private final StageStats decode;
+	private final StageStats map;
+	private final StageStats encode;
+	private final Semaphore budget;
+	private final int budgetBlocks;
+	private volatile boolean cancelled = false;
+	private Thread [] threads;
+
+	public ConversionPipeline(Steps steps, int readers, int mappers, int encoders, long pixelBudget) {
+		this.steps = steps;
+		decode = new StageStats("decode", Math.max(1, readers));
+		map = new StageStats("map", Math.max(1, mappers));
+		encode = new StageStats("encode", Math.max(1, encoders));
+		budgetBlocks = (int)Math.max(1, Math.min(Integer.MAX_VALUE, pixelBudget / PIXEL_BLOCK));
+		budget = new Semaphore(budgetBlocks);
+	}
+
+	// a budget of a tenth of the heap, decoded and indexed images take about 5 bytes per pixel
+	public static long defaultPixelBudget() {
+		return Runtime.getRuntime().maxMemory() / 10;
+	}
+
+	public StageStats [] getStageStats() {
+		return new StageStats [] { decode, map, encode };
+	}
+
+	public void start() {
+		threads = new Thread [decode.threads + map.threads + encode.threads];
+		AtomicInteger decoders = new AtomicInteger(decode.threads);
+		AtomicInteger mappers = new AtomicInteger(map.threads);
+		AtomicInteger encoders = new AtomicInteger(encode.threads);
+		int t = 0;
+		for(int i=0; i<decode.threads; i++)
+			threads[t++] = new StageThread(decode, map, decoders);
+		for(int i=0; i<map.threads; i++)
+			threads[t++] = new StageThread(map, encode, mappers);
+		for(int i=0; i<encode.threads; i++)
+			threads[t++] = new StageThread(encode, null, encoders);
+		for(Thread thread : threads)
+			thread.start();
+	}
+
+	public void submit(ConversionJob job) {
+		decode.put(job);
+	}
+
+	// jobs that are not started yet are dropped
+	public void cancel() {
+		cancelled = true;
+	}
+
+	// signals that all jobs are submitted and waits for them
+	public void finish() throws InterruptedException {
+		for(int i=0; i<decode.threads; i++)
+			decode.queue.add(END);
+		for(Thread thread : threads)
+			thread.join();
+	}
+
+	private int blocks(long pixels) {
+		long b = (pixels + PIXEL_BLOCK - 1) / PIXEL_BLOCK;
+		return (int)Math.max(1, Math.min(budgetBlocks, b));
+	}
+
+	// takes budget for an image of the given size from the header of the input,
+	// called by Steps.decode before decoding and blocks until there is room
+	public void reserve(ConversionJob job, long pixels) throws InterruptedIOException {
+		int b = blocks(pixels);
+		try {
+			budget.acquire(b);
+		} catch (InterruptedException e) {
+			cancelled = true;
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("cancelled");
+		}
+		job.budgetBlocks += b;
+	}
+
+	// fits the budget of a decoded job to its pixels
+	// the header size is exact for all readers, so this only takes budget for
+	// jobs that decoded without a reservation
+	private void settle(ConversionJob job) throws InterruptedException {
+		int b = blocks(job.pixels);
+		if(job.budgetBlocks == 0) {
+			budget.acquire(b);
+			job.budgetBlocks = b;
+		} else if(job.budgetBlocks > b) {
+			budget.release(job.budgetBlocks - b);
+			job.budgetBlocks = b;
+		}
+	}
+
+	private class StageThread extends Thread {
+		private final StageStats stage;
+		private final StageStats next;
+		private final AtomicInteger running;
+
+		StageThread(StageStats stage, StageStats next, AtomicInteger running) {
+			super("PalReplacer-" + stage.name);
+			setDaemon(true);
+			this.stage = stage;
+			this.next = next;
+			this.running = running;
+		}
+
+		@Override
+		public void run() {
+			try {
+				while(true) {
+					ConversionJob job = stage.queue.take();
+					if(job == END)
+						break;
+					process(job);
+				}
+			} catch (InterruptedException e) {
+				cancelled = true;
+			} finally {
+				// the last thread of a stage ends the next stage
+				if(running.decrementAndGet() == 0 && next != null) {
+					for(int i=0; i<next.threads; i++)
+						next.queue.add(END);
+				}
+			}
+		}
+
+		private void process(ConversionJob job) throws InterruptedException {
+			try {
+				if(cancelled) {
+					release(job);
+					return;
+				}
+
+				long start = System.nanoTime();
+				if(stage == decode) {
+					if(!steps.decode(job)) {
+						release(job);
+						return;
+					}
+					stage.done(job, System.nanoTime() - start);
+					settle(job);
+				} else if(stage == map) {
+					steps.map(job);
+					stage.done(job, System.nanoTime() - start);
+				} else {
+					steps.encode(job);
+					stage.done(job, System.nanoTime() - start);
+					release(job);
+					return;
+				}
+
+				next.put(job);
+			} catch (IOException e) {
+				steps.failed(job, e.getMessage());
+				release(job);
+			} catch (RuntimeException e) {
+				steps.failed(job, e.toString());
+				release(job);
+			} catch (OutOfMemoryError e) {
+				job.release();
+				steps.failed(job, "out of memory");
+				release(job);
+			}
+		}
+
+		// drops the images of the job and returns its budget
+		private void release(ConversionJob job) {
+			job.release();
+			if(job.budgetBlocks > 0) {
+				budget.release(job.budgetBlocks);
+				job.budgetBlocks = 0;
+			}
+		}
+	}
+}
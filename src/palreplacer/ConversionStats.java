@@ -0,0 +1,406 @@
+/*
+PalReplacer - Copyright (c) 2012 Hendrik Iben - hendrik [dot] iben <at> googlemail [dot] com
+
+Permission is hereby granted, free of charge, to any person obtaining a copy of
+this software and associated documentation files (the "Software"), to deal in
+the Software without restriction, including without limitation the rights to
+use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+of the Software, and to permit persons to whom the Software is furnished to do
+so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+
+
+package palreplacer;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.List;
+import java.util.Locale;
+
+// timing and throughput of a conversion batch
+// every input gets a record with the time spent in each stage, the pixels and
+// bytes it moved and the reason it failed. A record is only written by the thread
+// currently handling its file, the totals are summed when the batch is done.
+// Stage times are wall times summed over all threads, pipeline queue waits are
+// not included (see ConversionPipeline.StageStats).
+public class ConversionStats {
+	public static enum Stage {
+		DECODE("decode"),
+		MAP("map"),
+		DITHER("dither"),
+		REWRITE("rewrite"),
+		STRIPS("strips"),
+		ENCODE("encode");
+
+		private final String id;
+
+		private Stage(String id) {
+			this.id = id;
+		}
+
+		public String getId() {
+			return id;
+		}
+	}
+
+	public static enum Status {
+		CONVERTED("converted"),
+		UP_TO_DATE("up-to-date"),
+		SKIPPED("skipped"),
+		FAILED("failed");
+
+		private final String id;
+
+		private Status(String id) {
+			this.id = id;
+		}
+
+		public String getId() {
+			return id;
+		}
+	}
+
+	public static class FileStats {
+		private final File input;
+		private File output;
+		// null until the file is done, stays null if the batch was cancelled
+		private Status status;
+		private String error;
+		private final long [] stageNanos = new long [Stage.values().length];
+		private long pixels;
+		// pixels mapped by color and the palette colors among them
+		private long matchedPixels;
+		private long exactPixels;
+		private long bytesRead;
+		private long bytesWritten;
+
+		FileStats(File input) {
+			this.input = input;
+		}
+
+		void addTime(Stage stage, long nanos) {
+			stageNanos[stage.ordinal()] += nanos;
+		}
+
+		public File getInput() {
+			return input;
+		}
+
+		public File getOutput() {
+			return output;
+		}
+
+		public Status getStatus() {
+			return status;
+		}
+
+		public String getError() {
+			return error;
+		}
+
+		public long getStageNanos(Stage stage) {
+			return stageNanos[stage.ordinal()];
+		}
+
+		public long getNanos() {
+			long sum = 0;
+			for(long n : stageNanos)
+				sum += n;
+			return sum;
+		}
+
+		public long getPixels() {
+			return pixels;
+		}
+
+		public long getBytesRead() {
+			return bytesRead;
+		}
+
+		public long getBytesWritten() {
+			return bytesWritten;
+		}
+
+		public long getMatchedPixels() {
+			return matchedPixels;
+		}
+
+		public long getExactPixels() {
+			return exactPixels;
+		}
+
+		// share of the pixels mapped by color that were palette colors, -1 if none were mapped by color
+		public double getExactHitRatio() {
+			return ratio(exactPixels, matchedPixels);
+		}
+	}
+
+	private final FileStats [] files;
+	private final long startNanos;
+	private long endNanos;
+
+	ConversionStats(List<File> inputs) {
+		files = new FileStats [inputs.size()];
+		for(int i=0; i<files.length; i++)
+			files[i] = new FileStats(inputs.get(i));
+		startNanos = System.nanoTime();
+	}
+
+	FileStats get(int index) {
+		return files[index];
+	}
+
+	void setOutput(int index, File output) {
+		files[index].output = output;
+	}
+
+	void addTime(int index, Stage stage, long nanos) {
+		files[index].addTime(stage, nanos);
+	}
+
+	void read(int index, long bytes) {
+		files[index].bytesRead = bytes;
+	}
+
+	// a written output with the number of pixels converted
+	void converted(int index, long pixels, long bytesWritten) {
+		files[index].pixels = pixels;
+		files[index].bytesWritten = bytesWritten;
+	}
+
+	void matched(int index, long pixels, long exact) {
+		files[index].matchedPixels = pixels;
+		files[index].exactPixels = exact;
+	}
+
+	void done(int index, Status status, String error) {
+		files[index].status = status;
+		files[index].error = error;
+	}
+
+	void end() {
+		endNanos = System.nanoTime();
+	}
+
+	public FileStats [] getFiles() {
+		return files.clone();
+	}
+
+	public int getCount(Status status) {
+		int count = 0;
+		for(FileStats fs : files) {
+			if(fs.status == status)
+				count++;
+		}
+		return count;
+	}
+
+	public long getWallNanos() {
+		return (endNanos == 0 ? System.nanoTime() : endNanos) - startNanos;
+	}
+
+	public long getStageNanos(Stage stage) {
+		long sum = 0;
+		for(FileStats fs : files)
+			sum += fs.getStageNanos(stage);
+		return sum;
+	}
+
+	// pixels of the files that went through the stage
+	public long getStagePixels(Stage stage) {
+		long sum = 0;
+		for(FileStats fs : files) {
+			if(fs.getStageNanos(stage) > 0)
+				sum += fs.pixels;
+		}
+		return sum;
+	}
+
+	public long getPixels() {
+		long sum = 0;
+		for(FileStats fs : files)
+			sum += fs.pixels;
+		return sum;
+	}
+
+	public long getBytesRead() {
+		long sum = 0;
+		for(FileStats fs : files)
+			sum += fs.bytesRead;
+		return sum;
+	}
+
+	public long getBytesWritten() {
+		long sum = 0;
+		for(FileStats fs : files)
+			sum += fs.bytesWritten;
+		return sum;
+	}
+
+	public long getMatchedPixels() {
+		long sum = 0;
+		for(FileStats fs : files)
+			sum += fs.matchedPixels;
+		return sum;
+	}
+
+	public long getExactPixels() {
+		long sum = 0;
+		for(FileStats fs : files)
+			sum += fs.exactPixels;
+		return sum;
+	}
+
+	public double getExactHitRatio() {
+		return ratio(getExactPixels(), getMatchedPixels());
+	}
+
+	private static double ratio(long part, long total) {
+		return total == 0 ? -1.0 : (double)part / total;
+	}
+
+	private static double perSecond(double amount, long nanos) {
+		return nanos == 0 ? 0.0 : amount * 1e9 / nanos;
+	}
+
+	// converted and up to date files per second of wall time
+	public double getFilesPerSecond() {
+		return perSecond(getCount(Status.CONVERTED) + getCount(Status.UP_TO_DATE), getWallNanos());
+	}
+
+	public double getPixelsPerSecond() {
+		return perSecond(getPixels(), getWallNanos());
+	}
+
+	// pixels per second of a single thread while in the stage
+	public double getStagePixelsPerSecond(Stage stage) {
+		return perSecond(getStagePixels(stage), getStageNanos(stage));
+	}
+
+	private int getCancelledCount() {
+		return getCount(null);
+	}
+
+	// a few lines for humans
+	public String getSummary() {
+		long wall = getWallNanos();
+		StringBuilder sb = new StringBuilder();
+		sb.append(String.format(Locale.ROOT, "%d files in %d ms (%.1f files/s): %d converted, %d up to date, %d skipped, %d failed",
+			files.length, wall / 1000000L, getFilesPerSecond(),
+			getCount(Status.CONVERTED), getCount(Status.UP_TO_DATE), getCount(Status.SKIPPED), getCount(Status.FAILED)));
+		int cancelled = getCancelledCount();
+		if(cancelled > 0)
+			sb.append(", ").append(cancelled).append(" cancelled");
+		sb.append('\n');
+		sb.append(String.format(Locale.ROOT, "%.1f Mpx (%.1f Mpx/s), %.1f MB read, %.1f MB written\n",
+			getPixels() / 1e6, getPixelsPerSecond() / 1e6, getBytesRead() / 1e6, getBytesWritten() / 1e6));
+		if(getMatchedPixels() > 0)
+			sb.append(String.format(Locale.ROOT, "%.1f%% of %.1f Mpx mapped by color were palette colors\n", getExactHitRatio() * 100, getMatchedPixels() / 1e6));
+		for(Stage stage : Stage.values()) {
+			long nanos = getStageNanos(stage);
+			if(nanos == 0)
+				continue;
+			sb.append(String.format(Locale.ROOT, "%-8s %8d ms %8.1f Mpx/s per thread\n",
+				stage.getId(), nanos / 1000000L, getStagePixelsPerSecond(stage) / 1e6));
+		}
+		return sb.toString();
+	}
+
+	// writes the statistics of the batch and of every file as JSON
+	public void writeJson(File out) throws IOException {
+		PrintWriter pw = new PrintWriter(new OutputStreamWriter(new FileOutputStream(out), "UTF-8"));
+		try {
+			pw.print("{\n");
+			pw.print("  \"files\": " + files.length + ",\n");
+			for(Status status : Status.values())
+				pw.print("  \"" + status.getId() + "\": " + getCount(status) + ",\n");
+			pw.print("  \"cancelled\": " + getCancelledCount() + ",\n");
+			pw.print("  \"wallMillis\": " + millis(getWallNanos()) + ",\n");
+			pw.print("  \"filesPerSecond\": " + number(getFilesPerSecond()) + ",\n");
+			pw.print("  \"pixels\": " + getPixels() + ",\n");
+			pw.print("  \"pixelsPerSecond\": " + number(getPixelsPerSecond()) + ",\n");
+			pw.print("  \"bytesRead\": " + getBytesRead() + ",\n");
+			pw.print("  \"bytesWritten\": " + getBytesWritten() + ",\n");
+			pw.print("  \"matchedPixels\": " + getMatchedPixels() + ",\n");
+			pw.print("  \"exactHitRatio\": " + ratio(getExactHitRatio()) + ",\n");
+
+			pw.print("  \"stages\": {");
+			Stage [] stages = Stage.values();
+			for(int s=0; s<stages.length; s++) {
+				pw.print(s == 0 ? "\n" : ",\n");
+				pw.print("    \"" + stages[s].getId() + "\": { \"millis\": " + millis(getStageNanos(stages[s]))
+					+ ", \"pixels\": " + getStagePixels(stages[s])
+					+ ", \"pixelsPerSecond\": " + number(getStagePixelsPerSecond(stages[s])) + " }");
+			}
+			pw.print("\n  },\n");
+
+			pw.print("  \"fileStats\": [");
+			for(int i=0; i<files.length; i++) {
+				FileStats fs = files[i];
+				pw.print(i == 0 ? "\n" : ",\n");
+				pw.print("    { \"input\": " + string(fs.input.getPath()));
+				pw.print(", \"output\": " + (fs.output == null ? "null" : string(fs.output.getPath())));
+				pw.print(", \"status\": " + string(fs.status == null ? "cancelled" : fs.status.getId()));
+				pw.print(", \"error\": " + (fs.error == null ? "null" : string(fs.error)));
+				pw.print(", \"pixels\": " + fs.pixels);
+				pw.print(", \"bytesRead\": " + fs.bytesRead);
+				pw.print(", \"bytesWritten\": " + fs.bytesWritten);
+				pw.print(", \"matchedPixels\": " + fs.matchedPixels);
+				pw.print(", \"exactHitRatio\": " + ratio(fs.getExactHitRatio()));
+				pw.print(", \"millis\": { \"total\": " + millis(fs.getNanos()));
+				for(Stage stage : stages) {
+					if(fs.getStageNanos(stage) > 0)
+						pw.print(", \"" + stage.getId() + "\": " + millis(fs.getStageNanos(stage)));
+				}
+				pw.print(" } }");
+			}
+			pw.print(files.length == 0 ? "]\n" : "\n  ]\n");
+			pw.print("}\n");
+		} finally {
+			pw.close();
+		}
+		if(pw.checkError())
+			throw new IOException("Error writing " + out.getPath());
+	}
+
+	private static String millis(long nanos) {
+		return String.format(Locale.ROOT, "%.3f", nanos / 1e6);
+	}
+
+	// ratios of nothing are null
+	private static String ratio(double d) {
+		return d < 0 ? "null" : String.format(Locale.ROOT, "%.4f", d);
+	}
+
+	private static String number(double d) {
+		return String.format(Locale.ROOT, "%.1f", d);
+	}
+
+	private static String string(String s) {
+		StringBuilder sb = new StringBuilder("\"");
+		for(int i=0; i<s.length(); i++) {
+			char c = s.charAt(i);
+			if(c == '"' || c == '\\')
+				sb.append('\\').append(c);
+			else if(c < 0x20)
+				sb.append(String.format("\\u%04x", (int)c));
+			else
+				sb.append(c);
+		}
+		return sb.append('"').toString();
+	}
+}
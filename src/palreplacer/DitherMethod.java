@@ -0,0 +1,76 @@
+/*
+PalReplacer - Copyright (c) 2012 Hendrik Iben - hendrik [dot] iben <at> googlemail [dot] com
+
+Permission is hereby granted, free of charge, to any person obtaining a copy of
+this software and associated documentation files (the "Software"), to deal in
+the Software without restriction, including without limitation the rights to
+use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+of the Software, and to permit persons to whom the Software is furnished to do
+so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+
+
+package palreplacer;
+
+// dithering methods, toString gives the name for the user interface
+public enum DitherMethod {
+	FLOYD_STEINBERG("Floyd-Steinberg"),
+	SIERRA_LITE("Sierra Lite"),
+	ATKINSON("Atkinson"),
+	BAYER_2("Bayer 2x2", 2),
+	BAYER_4("Bayer 4x4", 4),
+	BAYER_8("Bayer 8x8", 8),
+	BLUE_NOISE("Blue noise", ThresholdMap.BLUE_NOISE_SIZE);
+
+	private final String title;
+	// size of the threshold map, 0 for error diffusion
+	private final int mapSize;
+
+	private DitherMethod(String title) {
+		this(title, 0);
+	}
+
+	private DitherMethod(String title, int mapSize) {
+		this.title = title;
+		this.mapSize = mapSize;
+	}
+
+	// true if pixels only depend on their position and color
+	public boolean isOrdered() {
+		return mapSize > 0;
+	}
+
+	public int getMapSize() {
+		return mapSize;
+	}
+
+	// name on the command line, e.g. floyd-steinberg
+	public String getId() {
+		return name().toLowerCase().replace('_', '-');
+	}
+
+	// method for a command line name, null if there is none
+	public static DitherMethod forId(String id) {
+		for(DitherMethod m : values()) {
+			if(m.getId().equalsIgnoreCase(id))
+				return m;
+		}
+		return null;
+	}
+
+	@Override
+	public String toString() {
+		return title;
+	}
+}
@@ -0,0 +1,65 @@
+/*
+PalReplacer - Copyright (c) 2012 Hendrik Iben - hendrik [dot] iben <at> googlemail [dot] com
+
+Permission is hereby granted, free of charge, to any person obtaining a copy of
+this software and associated documentation files (the "Software"), to deal in
+the Software without restriction, including without limitation the rights to
+use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+of the Software, and to permit persons to whom the Software is furnished to do
+so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+
+
+package palreplacer;
+
+import java.util.concurrent.ForkJoinPool;
+
+// dithers the rows of an image into palette indices
+// one instance dithers one image, the rows of a call continue those of the
+// previous call so images can be dithered in strips
+public abstract class Ditherer {
+	protected final CompiledPalette palette;
+	protected final int width;
+	protected final ForkJoinPool pool;
+
+	protected Ditherer(CompiledPalette palette, int width, ForkJoinPool pool) {
+		this.palette = palette;
+		this.width = width;
+		this.pool = pool;
+	}
+
+	public static Ditherer create(CompiledPalette palette, DitherMethod method, int width, ForkJoinPool pool) {
+		if(method.isOrdered())
+			return new OrderedDither(palette, method, width, pool);
+		return new ErrorDiffusion(palette, method, width, pool);
+	}
+
+	// dithers the rows y0 until y1 (exclusive) of the reader into the same rows
+	// of a byte or short index array
+	public abstract void ditherRows(PixelReader reader, Object target, int y0, int y1);
+
+	// copies a row of indices into row j of a byte or short index array
+	protected void storeRow(int [] line, Object target, int j) {
+		int o = j * width;
+		if(target instanceof byte []) {
+			byte [] indices = (byte [])target;
+			for(int i=0; i<width; i++)
+				indices[o+i] = (byte)line[i];
+		} else {
+			short [] indices = (short [])target;
+			for(int i=0; i<width; i++)
+				indices[o+i] = (short)line[i];
+		}
+	}
+}
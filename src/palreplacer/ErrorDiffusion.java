@@ -0,0 +1,256 @@
+/*
+PalReplacer - Copyright (c) 2012 Hendrik Iben - hendrik [dot] iben <at> googlemail [dot] com
+
+Permission is hereby granted, free of charge, to any person obtaining a copy of
+this software and associated documentation files (the "Software"), to deal in
+the Software without restriction, including without limitation the rights to
+use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+of the Software, and to permit persons to whom the Software is furnished to do
+so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+
+
+package palreplacer;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+// error diffusion dithering with integer kernels
+// the errors of each channel are kept in a ring of rows multiplied by the
+// kernel weights, the sum is divided once when it is used. Rows are scanned
+// left to right and colors are looked up in the dither table of the palette
+// (CompiledPalette.getDitherTable), unless they are palette colors: those keep
+// their index, so areas drawn in palette colors stay free of noise.
+// With a pool, rows are dithered as a wavefront: each row stays a
+// few pixels behind the row above it, so all errors have arrived when a pixel
+// is read and the result is the same as for a single thread.
+// One instance dithers one image, errors carry over from one call to the next
+// so an image can be dithered in strips with the same result as in one piece.
+public class ErrorDiffusion extends Ditherer {
+	// kernels as {dx, dy, weight}, weights are in units of 1/(1 << shift)
+	private static final int [][] FLOYD_STEINBERG = { {1, 0, 7}, {-1, 1, 3}, {0, 1, 5}, {1, 1, 1} };
+	private static final int [][] SIERRA_LITE = { {1, 0, 2}, {-1, 1, 1}, {0, 1, 1} };
+	// Atkinson spreads only 6/8 of the error
+	private static final int [][] ATKINSON = { {1, 0, 1}, {2, 0, 1}, {-1, 1, 1}, {0, 1, 1}, {1, 1, 1}, {0, 2, 1} };
+
+	// columns left and right of the image, kernels reach at most 2 pixels
+	private static final int PAD = 2;
+	// pixels of a row between progress updates
+	private static final int CHUNK = 256;
+
+	private final char [] table;
+	private final int bits;
+	private final int [] rgb;
+	private final ExactColorTable exact;
+
+	private final int [] dx;
+	private final int [] dy;
+	private final int [] weight;
+	private final int shift;
+	// rows below the current row the kernel writes to
+	private final int reach;
+
+	// rgb errors of the rows, indexed by image row modulo the ring size
+	private final int [][] errors;
+	// image row of the next row
+	private int row = 0;
+
+	public ErrorDiffusion(CompiledPalette palette, DitherMethod method, int width) {
+		this(palette, method, width, null);
+	}
+
+	public ErrorDiffusion(CompiledPalette palette, DitherMethod method, int width, ForkJoinPool pool) {
+		super(palette, width, pool);
+
+		int [][] kernel;
+		switch(method) {
+		case SIERRA_LITE:
+			kernel = SIERRA_LITE;
+			shift = 2;
+			break;
+		case ATKINSON:
+			kernel = ATKINSON;
+			shift = 3;
+			break;
+		default:
+			kernel = FLOYD_STEINBERG;
+			shift = 4;
+			break;
+		}
+
+		this.table = palette.getDitherTable();
+		this.bits = CompiledPalette.DITHER_BITS;
+		this.rgb = palette.getEntries();
+		this.exact = palette.getExactTable();
+
+		dx = new int [kernel.length];
+		dy = new int [kernel.length];
+		weight = new int [kernel.length];
+		int reach = 0;
+		for(int k=0; k<kernel.length; k++) {
+			dx[k] = kernel[k][0];
+			dy[k] = kernel[k][1];
+			weight[k] = kernel[k][2];
+			reach = Math.max(reach, dy[k]);
+		}
+		this.reach = reach;
+
+		// one row per thread plus the rows the kernel reaches
+		int threads = pool == null ? 1 : pool.getParallelism();
+		errors = new int [threads + reach][(width + 2 * PAD) * 3];
+	}
+
+	@Override
+	public void ditherRows(PixelReader reader, Object target, int y0, int y1) {
+		Wavefront wave = new Wavefront(reader, target, y0, y1);
+
+		int threads = pool == null ? 1 : Math.min(pool.getParallelism(), y1 - y0);
+		if(threads < 2 || (long)width * (y1 - y0) < ImageConverter.MIN_SPLIT_PIXELS) {
+			wave.run();
+		} else {
+			RowWorkers workers = new RowWorkers(wave, threads);
+			if(ForkJoinTask.getPool() == pool)
+				workers.invoke();
+			else
+				pool.invoke(workers);
+		}
+
+		row += y1 - y0;
+	}
+
+	// rows of one call, handed out in order to the threads working on it
+	private class Wavefront {
+		private final PixelReader reader;
+		private final Object target;
+		private final int y0;
+		private final int y1;
+		private final AtomicInteger next;
+		// pixels done per row
+		private final AtomicIntegerArray done;
+
+		Wavefront(PixelReader reader, Object target, int y0, int y1) {
+			this.reader = reader;
+			this.target = target;
+			this.y0 = y0;
+			this.y1 = y1;
+			this.next = new AtomicInteger(y0);
+			this.done = new AtomicIntegerArray(y1 - y0);
+		}
+
+		// dithers rows until there are none left
+		void run() {
+			int [] line = new int [width];
+			int [][] targets = new int [weight.length][];
+			int rows = errors.length;
+
+			int j;
+			while((j = next.getAndIncrement()) < y1) {
+				int n = row + j - y0;
+				// the last row in the ring must be done before its errors are reused
+				waitFor(j + reach - rows, width);
+
+				int [] current = errors[n % rows];
+				for(int k=0; k<targets.length; k++)
+					targets[k] = errors[(n + dy[k]) % rows];
+
+				reader.readRow(j, 0, width, line);
+				for(int x0=0; x0<width; x0+=CHUNK) {
+					int x1 = Math.min(width, x0 + CHUNK);
+					// the row above must be past every pixel whose errors this chunk
+					// reads or writes next to
+					waitFor(j - 1, Math.min(width, x1 + PAD + 1));
+					ditherRow(line, current, targets, x0, x1);
+					if(x1 == width)
+						Arrays.fill(current, 0);
+					done.set(j - y0, x1);
+				}
+
+				storeRow(line, target, j);
+			}
+		}
+
+		// waits until row y has dithered the given number of pixels
+		private void waitFor(int y, int pixels) {
+			if(y < y0)
+				return;
+			while(done.get(y - y0) < pixels)
+				Thread.yield();
+		}
+	}
+
+	// replaces the colors x0 until x1 (exclusive) of a row with palette indices
+	private void ditherRow(int [] line, int [] current, int [][] targets, int x0, int x1) {
+		int round = 1 << (shift - 1);
+		int cellShift = 8 - bits;
+		int kernelSize = weight.length;
+
+		for(int i=x0; i<x1; i++) {
+			int c = line[i];
+			int e = (PAD + i) * 3;
+
+			int r = ((c >> 16) & 0xFF) + ((current[e] + round) >> shift);
+			int g = ((c >>  8) & 0xFF) + ((current[e+1] + round) >> shift);
+			int b = ((c >>  0) & 0xFF) + ((current[e+2] + round) >> shift);
+			r = r < 0 ? 0 : (r > 255 ? 255 : r);
+			g = g < 0 ? 0 : (g > 255 ? 255 : g);
+			b = b < 0 ? 0 : (b > 255 ? 255 : b);
+
+			// palette colors have no error, the cells only approximate them
+			int index = exact.get((r << 16) | (g << 8) | b);
+			if(index < 0)
+				index = table[((r >> cellShift) << (2 * bits)) | ((g >> cellShift) << bits) | (b >> cellShift)];
+			line[i] = index;
+
+			int p = rgb[index];
+			int er = r - ((p >> 16) & 0xFF);
+			int eg = g - ((p >>  8) & 0xFF);
+			int eb = b - ((p >>  0) & 0xFF);
+
+			for(int k=0; k<kernelSize; k++) {
+				int [] t = targets[k];
+				int te = e + dx[k] * 3;
+				int wk = weight[k];
+				t[te] += er * wk;
+				t[te+1] += eg * wk;
+				t[te+2] += eb * wk;
+			}
+		}
+	}
+
+	// runs a wavefront on several pool threads
+	private static class RowWorkers extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final Wavefront wave;
+		private final int threads;
+
+		RowWorkers(Wavefront wave, int threads) {
+			this.wave = wave;
+			this.threads = threads;
+		}
+
+		@Override
+		protected void compute() {
+			if(threads == 1) {
+				wave.run();
+				return;
+			}
+			invokeAll(new RowWorkers(wave, threads / 2), new RowWorkers(wave, threads - threads / 2));
+		}
+	}
+}
@@ -0,0 +1,79 @@
+/*
+PalReplacer - Copyright (c) 2012 Hendrik Iben - hendrik [dot] iben <at> googlemail [dot] com
+
+Permission is hereby granted, free of charge, to any person obtaining a copy of
+this software and associated documentation files (the "Software"), to deal in
+the Software without restriction, including without limitation the rights to
+use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+of the Software, and to permit persons to whom the Software is furnished to do
+so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+
+
+package palreplacer;
+
+// finds palette colors that occur exactly in an image
+// open addressing hash of the 24 bit palette colors with linear probing, the
+// first index of a color is kept, so a hit is the lowest index with error zero
+// as the other matchers would find it. Built once per palette and read-only
+// afterwards.
+public class ExactColorTable {
+	private static final int EMPTY = -1;
+
+	private final int [] keys;
+	private final int [] values;
+	private final int mask;
+	private final int shift;
+
+	public ExactColorTable(int [] rgb) {
+		// load factor of at most one half
+		int capacity = Integer.highestOneBit(Math.max(1, rgb.length)) << 2;
+		keys = new int [capacity];
+		values = new int [capacity];
+		mask = capacity - 1;
+		shift = Integer.numberOfLeadingZeros(mask);
+
+		for(int k=0; k<capacity; k++)
+			keys[k] = EMPTY;
+
+		for(int index=0; index<rgb.length; index++) {
+			int c = rgb[index] & 0xFFFFFF;
+			int slot = slot(c);
+			while(keys[slot] != EMPTY && keys[slot] != c)
+				slot = (slot + 1) & mask;
+			if(keys[slot] == EMPTY) {
+				keys[slot] = c;
+				values[slot] = index;
+			}
+		}
+	}
+
+	private int slot(int c) {
+		// top bits of a multiplicative hash
+		return (c * 0x9E3779B1) >>> shift;
+	}
+
+	// palette index of the rgb color c, -1 if it is not in the palette
+	public int get(int c) {
+		c &= 0xFFFFFF;
+		int slot = slot(c);
+		int key;
+		while( (key = keys[slot]) != EMPTY) {
+			if(key == c)
+				return values[slot];
+			slot = (slot + 1) & mask;
+		}
+		return -1;
+	}
+}
@@ -0,0 +1,183 @@
+/*
+PalReplacer - Copyright (c) 2012 Hendrik Iben - hendrik [dot] iben <at> googlemail [dot] com
+
+Permission is hereby granted, free of charge, to any person obtaining a copy of
+this software and associated documentation files (the "Software"), to deal in
+the Software without restriction, including without limitation the rights to
+use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+of the Software, and to permit persons to whom the Software is furnished to do
+so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+
+
+package palreplacer;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import javax.imageio.ImageIO;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageInputStreamImpl;
+
+// reads input files through file channels
+// an input is read into a heap buffer with one channel read and ImageIO reads
+// it through a stream over that buffer, so there is no system call per read and
+// no temp file cache. Buffers up to RETAINED_BYTES are kept per thread for the
+// next file, larger ones are left to the collector after their file. Files
+// are not mapped: mappings are only released by the garbage collector, which can
+// exhaust the mappings of the process and keeps the files locked on Windows.
+// Larger files are read with ImageIO's own file stream.
+public class FileInput {
+	// larger files are not buffered
+	private static final int BUFFER_BYTES = 1 << 24;
+	// larger buffers are not kept, so an idle thread holds at most this much
+	private static final int RETAINED_BYTES = 1 << 20;
+
+	// buffer of the thread, null while a stream of the thread uses it
+	private static final ThreadLocal<byte []> buffers = new ThreadLocal<byte []>();
+
+	// contents of a file, read-only
+	public static ByteBuffer read(File f) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(f, "r");
+		try {
+			long size = raf.length();
+			if(size > Integer.MAX_VALUE)
+				throw new IOException("File too large: " + size + " bytes");
+
+			byte [] data = new byte [(int)size];
+			readFully(raf.getChannel(), data, data.length);
+			return ByteBuffer.wrap(data).asReadOnlyBuffer();
+		} finally {
+			raf.close();
+		}
+	}
+
+	private static void readFully(FileChannel fc, byte [] data, int length) throws IOException {
+		ByteBuffer bb = ByteBuffer.wrap(data, 0, length);
+		while(bb.hasRemaining()) {
+			if(fc.read(bb) < 0)
+				throw new IOException("File truncated while reading");
+		}
+	}
+
+	// stream for ImageIO readers
+	public static ImageInputStream openImage(File f) throws IOException {
+		long size = f.length();
+		if(size > BUFFER_BYTES)
+			return ImageIO.createImageInputStream(f);
+
+		byte [] data = buffers.get();
+		if(data != null && data.length >= size)
+			buffers.set(null);
+		else
+			data = new byte [(int)size];
+		boolean retain = data.length <= RETAINED_BYTES;
+
+		boolean ok = false;
+		RandomAccessFile raf = new RandomAccessFile(f, "r");
+		try {
+			// the file may have changed since its length was taken
+			if(raf.length() != size)
+				throw new IOException("File changed while reading");
+			readFully(raf.getChannel(), data, (int)size);
+			ok = true;
+		} finally {
+			raf.close();
+			if(!ok && retain)
+				keep(data);
+		}
+		return new BufferInputStream(data, (int)size, retain);
+	}
+
+	// keeps data as the buffer of the thread unless that has a larger one
+	private static void keep(byte [] data) {
+		byte [] kept = buffers.get();
+		if(kept == null || kept.length < data.length)
+			buffers.set(data);
+	}
+
+	// like ImageIO.read(File), null if no reader knows the format
+	public static BufferedImage readImage(File f) throws IOException {
+		ImageInputStream iis = openImage(f);
+		if(iis == null)
+			throw new IOException("unable to open file");
+		// ImageIO closes the stream once it found a reader
+		BufferedImage bi = ImageIO.read(iis);
+		if(bi == null)
+			iis.close();
+		return bi;
+	}
+
+	// ImageInputStream over the first length bytes of data, which are not modified
+	public static class BufferInputStream extends ImageInputStreamImpl {
+		private byte [] data;
+		private final int length;
+		// data is small enough to be kept by the thread after close
+		private final boolean pooled;
+
+		public BufferInputStream(byte [] data, int length) {
+			this(data, length, false);
+		}
+
+		private BufferInputStream(byte [] data, int length, boolean pooled) {
+			this.data = data;
+			this.length = length;
+			this.pooled = pooled;
+		}
+
+		@Override
+		public int read() throws IOException {
+			checkClosed();
+			bitOffset = 0;
+			if(streamPos >= length)
+				return -1;
+			return data[(int)streamPos++] & 0xFF;
+		}
+
+		@Override
+		public int read(byte [] b, int off, int len) throws IOException {
+			checkClosed();
+			if(off < 0 || len < 0 || off + len > b.length || off + len < 0)
+				throw new IndexOutOfBoundsException();
+			bitOffset = 0;
+			if(len == 0)
+				return 0;
+			if(streamPos >= length)
+				return -1;
+
+			int n = (int)Math.min(len, length - streamPos);
+			System.arraycopy(data, (int)streamPos, b, off, n);
+			streamPos += n;
+			return n;
+		}
+
+		@Override
+		public long length() {
+			return length;
+		}
+
+		// the buffer goes to the closing thread
+		@Override
+		public void close() throws IOException {
+			super.close();
+			if(pooled)
+				keep(data);
+			data = null;
+		}
+	}
+}
@@ -0,0 +1,510 @@
+/*
+PalReplacer - Copyright (c) 2012 Hendrik Iben - hendrik [dot] iben <at> googlemail [dot] com
+
+Permission is hereby granted, free of charge, to any person obtaining a copy of
+this software and associated documentation files (the "Software"), to deal in
+the Software without restriction, including without limitation the rights to
+use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+of the Software, and to permit persons to whom the Software is furnished to do
+so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+
+
+package palreplacer;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferUShort;
+import java.awt.image.IndexColorModel;
+import java.awt.image.Raster;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+
+// maps a single image to the target palette
+// may be used from several threads, the only state kept between images are
+// the index maps of source palettes (see RemapCache)
+// With a pool, large truecolor images are split into bands of rows that are
+// mapped concurrently. Small images are not split, the task overhead would
+// cost more than it saves.
+// With a BufferPool, target images and scratch buffers are reused, see recycle.
+public class ImageConverter {
+	// images with less pixels are always mapped on the calling thread
+	public static final int MIN_SPLIT_PIXELS = 1 << 18;
+	// lower bound for the pixels of a band
+	public static final int MIN_BAND_PIXELS = 1 << 16;
+	// bands per pool thread, gives room for balancing uneven bands
+	private static final int BANDS_PER_THREAD = 4;
+	// bands with at most this many colors are mapped by a ColorHistogram
+	public static final int HISTOGRAM_COLORS = 1024;
+
+	private final CompiledPalette palette;
+	// null maps each pixel to the closest color
+	private final DitherMethod dither;
+	private final ForkJoinPool pool;
+	private final RemapCache remapCache = new RemapCache();
+	// null allocates new buffers for every image
+	private final BufferPool buffers;
+
+	public ImageConverter(CompiledPalette palette, boolean noDither) {
+		this(palette, noDither, null);
+	}
+
+	public ImageConverter(CompiledPalette palette, boolean noDither, ForkJoinPool pool) {
+		this(palette, noDither ? null : DitherMethod.FLOYD_STEINBERG, pool);
+	}
+
+	public ImageConverter(CompiledPalette palette, DitherMethod dither, ForkJoinPool pool) {
+		this(palette, dither, pool, null);
+	}
+
+	public ImageConverter(CompiledPalette palette, DitherMethod dither, ForkJoinPool pool, BufferPool buffers) {
+		if(buffers != null && buffers.getPalette() != palette)
+			throw new IllegalArgumentException("Buffer pool of another palette");
+		this.palette = palette;
+		this.dither = dither;
+		this.pool = pool;
+		this.buffers = buffers;
+	}
+
+	public DitherMethod getDitherMethod() {
+		return dither;
+	}
+
+	// state for dithering an image of the given width, null without dithering
+	public Ditherer createDitherer(int width) {
+		if(dither == null)
+			return null;
+		return Ditherer.create(palette, dither, width, pool);
+	}
+
+	public BufferedImage convert(BufferedImage bi) {
+		return convert(bi, createDitherer(bi.getWidth()));
+	}
+
+	// converts an image or a strip of an image, strips of a dithered image
+	// must be converted in order with the same Ditherer
+	public BufferedImage convert(BufferedImage bi, Ditherer ditherer) {
+		return convert(bi, ditherer, null);
+	}
+
+	// pixels mapped by color and how many of them were palette colors
+	// only images mapped pixel by pixel without dithering are counted
+	public static class MatchCount {
+		private final AtomicLong pixels = new AtomicLong();
+		private final AtomicLong exact = new AtomicLong();
+
+		void add(long pixels, long exact) {
+			this.pixels.addAndGet(pixels);
+			this.exact.addAndGet(exact);
+		}
+
+		public long getPixels() {
+			return pixels.get();
+		}
+
+		public long getExact() {
+			return exact.get();
+		}
+	}
+
+	// count, if not null, is increased by the pixels mapped by color
+	public BufferedImage convert(BufferedImage bi, Ditherer ditherer, MatchCount count) {
+		return convert(bi, ditherer, count, false);
+	}
+
+	// like convert, but bi belongs to the converter afterwards
+	// byte indexed images are remapped in their own buffer and returned with the
+	// target palette, so they are not copied at all
+	public BufferedImage convertInPlace(BufferedImage bi, Ditherer ditherer, MatchCount count) {
+		return convert(bi, ditherer, count, true);
+	}
+
+	// converts into off-heap indices of the same size, in strips of about stripPixels
+	// only one strip of the target is on the heap at a time, byte palettes only
+	public void convert(BufferedImage bi, Ditherer ditherer, MatchCount count, IndexBuffer out, int stripPixels) {
+		int w = bi.getWidth();
+		int h = bi.getHeight();
+
+		if(palette.isShortIndexed())
+			throw new IllegalArgumentException("Off-heap indices need a palette of at most 256 colors");
+		if(out.getWidth() != w || out.getHeight() != h)
+			throw new IllegalArgumentException("Size " + w + "x" + h + " does not match " + out.getWidth() + "x" + out.getHeight());
+
+		int stripRows = Math.max(1, stripPixels / w);
+		for(int y=0; y<h; y+=stripRows) {
+			int sh = Math.min(stripRows, h - y);
+			BufferedImage strip = convert(bi.getSubimage(0, y, w, sh), ditherer, count, false);
+			out.putRows(y, ((DataBufferByte)strip.getRaster().getDataBuffer()).getData(), 0, sh);
+			recycle(strip);
+		}
+	}
+
+	// hands an image returned by convert to the buffer pool, it must not be used afterwards
+	public void recycle(BufferedImage target) {
+		if(buffers != null && target.getColorModel() == palette.getColorModel() && getPlainIndices(target) != null)
+			buffers.releaseImage(target);
+	}
+
+	private BufferedImage convert(BufferedImage bi, Ditherer ditherer, MatchCount count, boolean inPlace) {
+		int w = bi.getWidth();
+		int h = bi.getHeight();
+
+		if(ditherer == null && bi.getColorModel() instanceof IndexColorModel && isIndexed(bi))
+			return convertIndexed(bi, inPlace);
+
+		BufferedImage target = buffers == null ? palette.createImage(w, h) : buffers.takeImage(w, h);
+		// byte or short array of the target raster
+		Object target_data = getData(target);
+
+		if(ditherer == null) {
+			// converting by rgb
+			// pixels are read from the source buffers and indices are
+			// written straight into the buffer of the target
+			PixelReader reader = PixelReader.forImage(bi);
+			int bandRows = getBandRows(w, h);
+			if(bandRows >= h) {
+				mapRows(reader, target_data, w, 0, h, count);
+			} else {
+				RowBands bands = new RowBands(reader, target_data, w, 0, h, bandRows, count);
+				if(ForkJoinTask.getPool() == pool)
+					bands.invoke();
+				else
+					pool.invoke(bands);
+			}
+		} else {
+			ditherer.ditherRows(PixelReader.forImage(bi), target_data, 0, h);
+		}
+
+		return target;
+	}
+
+	// converting by index
+	private BufferedImage convertIndexed(BufferedImage bi, boolean inPlace) {
+		int w = bi.getWidth();
+		int h = bi.getHeight();
+
+		IndexColorModel bi_icm = (IndexColorModel)bi.getColorModel();
+		int isize = bi_icm.getMapSize();
+		int [] bi_rgb = new int [isize];
+		bi_icm.getRGBs(bi_rgb);
+
+		boolean byteIndices = !palette.isShortIndexed();
+		Object index_map = getIndexMap(bi_rgb, byteIndices);
+		// indices are read from the source buffer, unless it has padding or offsets
+		Object indices = getPlainIndices(bi);
+
+		if(inPlace && byteIndices && indices instanceof byte []) {
+			byte [] data = (byte [])indices;
+			mapIndices(data, 0, data, 0, w * h, index_map);
+			return new BufferedImage(palette.getColorModel(), bi.getRaster(), false, null);
+		}
+
+		BufferedImage target = buffers == null ? palette.createImage(w, h) : buffers.takeImage(w, h);
+		Object target_data = getData(target);
+
+		if(indices != null) {
+			mapIndices(indices, 0, target_data, 0, w * h, index_map);
+		} else {
+			Raster raster = bi.getRaster();
+			Object row = null;
+			for(int j=0; j<h; j++) {
+				row = raster.getDataElements(0, j, w, 1, row);
+				mapIndices(row, 0, target_data, j * w, w, index_map);
+			}
+		}
+
+		return target;
+	}
+
+	// maps n byte or short source indices to byte or short target indices
+	private static void mapIndices(Object src, int srcOffset, Object dst, int dstOffset, int n, Object index_map) {
+		if(dst instanceof byte []) {
+			byte [] map = (byte [])index_map;
+			byte [] target_indices = (byte [])dst;
+			if(src instanceof byte []) {
+				byte [] s = (byte [])src;
+				for(int i=0; i<n; i++)
+					target_indices[dstOffset+i] = map[((int)s[srcOffset+i])&0xFF];
+			} else {
+				short [] s = (short [])src;
+				for(int i=0; i<n; i++)
+					target_indices[dstOffset+i] = map[((int)s[srcOffset+i])&0xFFFF];
+			}
+		} else {
+			short [] map = (short [])index_map;
+			short [] target_indices = (short [])dst;
+			if(src instanceof byte []) {
+				byte [] s = (byte [])src;
+				for(int i=0; i<n; i++)
+					target_indices[dstOffset+i] = map[((int)s[srcOffset+i])&0xFF];
+			} else {
+				short [] s = (short [])src;
+				for(int i=0; i<n; i++)
+					target_indices[dstOffset+i] = map[((int)s[srcOffset+i])&0xFFFF];
+			}
+		}
+	}
+
+	// rows per band for an image, h if the image should not be split
+	public int getBandRows(int w, int h) {
+		return getBandRows(pool, w, h);
+	}
+
+	public static int getBandRows(ForkJoinPool pool, int w, int h) {
+		int threads = pool == null ? 1 : pool.getParallelism();
+		if(threads < 2 || (long)w * h < MIN_SPLIT_PIXELS)
+			return h;
+
+		int minRows = (MIN_BAND_PIXELS + w - 1) / w;
+		int bands = threads * BANDS_PER_THREAD;
+		return Math.min(h, Math.max(minRows, (h + bands - 1) / bands));
+	}
+
+	// byte [] or short [] map from source palette indices to target indices
+	// maps are shared by all images of the batch with the same source palette
+	public Object getIndexMap(int [] bi_rgb, boolean byteIndices) {
+		Object index_map = remapCache.get(bi_rgb);
+		if(index_map != null)
+			return index_map;
+
+		ConversionEvents.LookupTableBuild event = new ConversionEvents.LookupTableBuild();
+		event.begin();
+
+		PaletteMatcher matcher = palette.getMatcher();
+		int isize = bi_rgb.length;
+		if(byteIndices) {
+			byte [] map = new byte [isize];
+			// get best match for used colors
+			for(int ci=0; ci<isize; ci++)
+				map[ci] = (byte)matcher.getBestColorIndex(ci, bi_rgb[ci]);
+			index_map = map;
+		} else {
+			short [] map = new short [isize];
+			for(int ci=0; ci<isize; ci++)
+				map[ci] = (short)matcher.getBestColorIndex(ci, bi_rgb[ci]);
+			index_map = map;
+		}
+
+		event.end();
+		if(event.shouldCommit()) {
+			event.table = "index map";
+			event.cells = isize;
+			event.paletteSize = palette.size();
+			event.commit();
+		}
+
+		remapCache.put(bi_rgb, index_map);
+		return index_map;
+	}
+
+	public RemapCache getRemapCache() {
+		return remapCache;
+	}
+
+	// the index array of an image created by CompiledPalette.createImage
+	private static Object getData(BufferedImage target) {
+		DataBuffer db = target.getRaster().getDataBuffer();
+		if(db instanceof DataBufferByte)
+			return ((DataBufferByte)db).getData();
+		return ((DataBufferUShort)db).getData();
+	}
+
+	// byte or short array of an image with one index per element, starting at
+	// the first element without padding, null for other layouts
+	private static Object getPlainIndices(BufferedImage bi) {
+		Raster raster = bi.getRaster();
+		if(raster.getNumBands() != 1 || !(raster.getSampleModel() instanceof ComponentSampleModel))
+			return null;
+
+		ComponentSampleModel csm = (ComponentSampleModel)raster.getSampleModel();
+		DataBuffer db = raster.getDataBuffer();
+		int offset = csm.getOffset(-raster.getSampleModelTranslateX(), -raster.getSampleModelTranslateY()) + db.getOffset();
+		if(db.getNumBanks() != 1 || csm.getPixelStride() != 1 || csm.getScanlineStride() != bi.getWidth() || offset != 0)
+			return null;
+
+		if(db instanceof DataBufferByte)
+			return ((DataBufferByte)db).getData();
+		if(db instanceof DataBufferUShort)
+			return ((DataBufferUShort)db).getData();
+		return null;
+	}
+
+	// byte indexed images and single band short rasters with up to 16 bit palettes
+	private static boolean isIndexed(BufferedImage bi) {
+		if(bi.getType() == BufferedImage.TYPE_BYTE_INDEXED)
+			return true;
+
+		Raster raster = bi.getRaster();
+		return raster.getNumBands() == 1 && raster.getTransferType() == DataBuffer.TYPE_USHORT && raster.getSampleModel() instanceof ComponentSampleModel;
+	}
+
+	// maps the rows y0 until y1 (exclusive) into a byte or short index array
+	private void mapRows(PixelReader reader, Object target, int w, int y0, int y1, MatchCount count) {
+		int [] rgb_line = buffers == null ? new int [w] : buffers.takeInts(w);
+
+		// few colors are collected and mapped once per color, many colors go to
+		// the lookup table that lives for the whole batch from the first row
+		// with too many colors on (a boxed per-image cache was slower than the table)
+		mapRowsByHistogram(reader, target, w, y0, y1, count, rgb_line);
+
+		if(buffers != null)
+			buffers.releaseInts(rgb_line);
+	}
+
+	// rowRead tells that rgb_line already holds row y0
+	private void mapRowsByColor(PixelReader reader, Object target, int w, int y0, int y1, MatchCount count, int [] rgb_line, boolean rowRead) {
+		PaletteMatcher matcher = palette.getMatcher();
+		ExactColorTable exact = palette.getExactTable();
+		int hits = 0;
+
+		// pixels that are palette colors are found in the exact table first,
+		// the last color is remembered for runs of pixels
+		int last = -1;
+		int lastIndex = 0;
+		int lastHit = 0;
+		if(target instanceof byte []) {
+			byte [] indices = (byte [])target;
+			for(int j=y0; j<y1; j++) {
+				if(j > y0 || !rowRead)
+					reader.readRow(j, 0, w, rgb_line);
+
+				int o = j * w;
+				for(int i=0; i<w; i++) {
+					int c = rgb_line[i] & 0xFFFFFF;
+					if(c != last) {
+						last = c;
+						lastIndex = exact.get(c);
+						lastHit = lastIndex < 0 ? 0 : 1;
+						if(lastIndex < 0)
+							lastIndex = matcher.getBestColorIndex(-1, c);
+					}
+					hits += lastHit;
+					indices[o+i] = (byte)lastIndex;
+				}
+			}
+		} else {
+			short [] indices = (short [])target;
+			for(int j=y0; j<y1; j++) {
+				if(j > y0 || !rowRead)
+					reader.readRow(j, 0, w, rgb_line);
+
+				int o = j * w;
+				for(int i=0; i<w; i++) {
+					int c = rgb_line[i] & 0xFFFFFF;
+					if(c != last) {
+						last = c;
+						lastIndex = exact.get(c);
+						lastHit = lastIndex < 0 ? 0 : 1;
+						if(lastIndex < 0)
+							lastIndex = matcher.getBestColorIndex(-1, c);
+					}
+					hits += lastHit;
+					indices[o+i] = (short)lastIndex;
+				}
+			}
+		}
+
+		if(count != null)
+			count.add((long)(y1 - y0) * w, hits);
+	}
+
+	// counts the colors of each row, resolves new colors once and maps the row
+	// the rows from the first one with too many colors on are mapped by color,
+	// every row is read once
+	private void mapRowsByHistogram(PixelReader reader, Object target, int w, int y0, int y1, MatchCount count, int [] rgb_line) {
+		ColorHistogram histogram = buffers == null ? new ColorHistogram(HISTOGRAM_COLORS) : buffers.takeHistogram(HISTOGRAM_COLORS);
+		ExactColorTable exact = palette.getExactTable();
+		PaletteMatcher matcher = palette.getMatcher();
+
+		// the last color is remembered for runs of pixels
+		int last = -1;
+		int lastIndex = 0;
+		int j = y0;
+		for(; j<y1; j++) {
+			reader.readRow(j, 0, w, rgb_line);
+			if(!histogram.add(rgb_line, w))
+				break;
+			histogram.resolve(exact, matcher);
+
+			int o = j * w;
+			if(target instanceof byte []) {
+				byte [] indices = (byte [])target;
+				for(int i=0; i<w; i++) {
+					int c = rgb_line[i] & 0xFFFFFF;
+					if(c != last) {
+						last = c;
+						lastIndex = histogram.get(c);
+					}
+					indices[o+i] = (byte)lastIndex;
+				}
+			} else {
+				short [] indices = (short [])target;
+				for(int i=0; i<w; i++) {
+					int c = rgb_line[i] & 0xFFFFFF;
+					if(c != last) {
+						last = c;
+						lastIndex = histogram.get(c);
+					}
+					indices[o+i] = (short)lastIndex;
+				}
+			}
+		}
+
+		if(count != null)
+			count.add((long)(j - y0) * w, histogram.getExactPixels());
+		if(buffers != null)
+			buffers.releaseHistogram(histogram);
+
+		if(j < y1)
+			mapRowsByColor(reader, target, w, j, y1, count, rgb_line, true);
+	}
+
+	// splits a range of rows in halves until it is no larger than a band
+	private class RowBands extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final PixelReader reader;
+		private final Object target;
+		private final int w;
+		private final int y0;
+		private final int y1;
+		private final int bandRows;
+		private final MatchCount count;
+
+		public RowBands(PixelReader reader, Object target, int w, int y0, int y1, int bandRows, MatchCount count) {
+			this.reader = reader;
+			this.target = target;
+			this.w = w;
+			this.y0 = y0;
+			this.y1 = y1;
+			this.bandRows = bandRows;
+			this.count = count;
+		}
+
+		@Override
+		protected void compute() {
+			if(y1 - y0 <= bandRows) {
+				mapRows(reader, target, w, y0, y1, count);
+				return;
+			}
+
+			int mid = y0 + (((y1 - y0) / bandRows + 1) / 2) * bandRows;
+			invokeAll(new RowBands(reader, target, w, y0, mid, bandRows, count), new RowBands(reader, target, w, mid, y1, bandRows, count));
+		}
+	}
+}
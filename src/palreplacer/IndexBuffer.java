@@ -0,0 +1,145 @@
+/*
+PalReplacer - Copyright (c) 2012 Hendrik Iben - hendrik [dot] iben <at> googlemail [dot] com
+
+Permission is hereby granted, free of charge, to any person obtaining a copy of
+this software and associated documentation files (the "Software"), to deal in
+the Software without restriction, including without limitation the rights to
+use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+of the Software, and to permit persons to whom the Software is furnished to do
+so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+
+
+package palreplacer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+// byte indices of an image kept outside of the Java heap
+// the rows live in direct byte buffers or in a memory mapped scratch file,
+// in chunks of whole rows as a single buffer holds at most 2 GB. Used between
+// mapping and encoding of large images, so neither a target image nor the
+// decoded source has to stay on the heap while the output is written.
+// Rows are written by one thread and read afterwards, possibly by another one
+// after a hand-over through a queue or a pool.
+public class IndexBuffer {
+	private static final int CHUNK_BYTES = 1 << 30;
+
+	private final int width;
+	private final int height;
+	private final int rowsPerChunk;
+	private final ByteBuffer [] chunks;
+	// scratch file of a mapped buffer, null for direct buffers
+	private final File file;
+	private final RandomAccessFile raf;
+
+	private IndexBuffer(int width, int height, File file, RandomAccessFile raf) throws IOException {
+		if(width <= 0 || height <= 0)
+			throw new IllegalArgumentException("Invalid size " + width + "x" + height);
+		if(width > CHUNK_BYTES)
+			throw new IllegalArgumentException("Rows too long: " + width);
+
+		this.width = width;
+		this.height = height;
+		this.rowsPerChunk = CHUNK_BYTES / width;
+		this.file = file;
+		this.raf = raf;
+
+		chunks = new ByteBuffer [(height + rowsPerChunk - 1) / rowsPerChunk];
+		for(int c=0; c<chunks.length; c++) {
+			int rows = Math.min(rowsPerChunk, height - c * rowsPerChunk);
+			int size = rows * width;
+			if(raf == null)
+				chunks[c] = ByteBuffer.allocateDirect(size);
+			else
+				chunks[c] = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, (long)c * rowsPerChunk * width, size);
+		}
+	}
+
+	// indices in direct memory, limited by -XX:MaxDirectMemorySize
+	public static IndexBuffer allocateDirect(int width, int height) {
+		try {
+			return new IndexBuffer(width, height, null, null);
+		} catch (IOException e) {
+			// only mapping files throws
+			throw new IllegalStateException(e);
+		}
+	}
+
+	// indices in a scratch file in dir (null for the temp directory), deleted on close
+	// the operating system pages the file, so it may be larger than the memory
+	public static IndexBuffer map(int width, int height, File dir) throws IOException {
+		File file = File.createTempFile("palreplacer", ".idx", dir);
+		file.deleteOnExit();
+		RandomAccessFile raf = null;
+		boolean ok = false;
+		try {
+			raf = new RandomAccessFile(file, "rw");
+			raf.setLength((long)width * height);
+			IndexBuffer buffer = new IndexBuffer(width, height, file, raf);
+			ok = true;
+			return buffer;
+		} finally {
+			if(!ok) {
+				if(raf != null)
+					raf.close();
+				file.delete();
+			}
+		}
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	// stores rows from y on, width indices per row starting at offset
+	public void putRows(int y, byte [] indices, int offset, int rows) {
+		for(int j=0; j<rows; j++) {
+			ByteBuffer chunk = chunk(y + j);
+			chunk.put(indices, offset + j * width, width);
+		}
+	}
+
+	// reads row y into row[offset..offset+width-1]
+	public void getRow(int y, byte [] row, int offset) {
+		chunk(y).get(row, offset, width);
+	}
+
+	// a view of the chunk of row y, positioned at the row
+	private ByteBuffer chunk(int y) {
+		if(y < 0 || y >= height)
+			throw new IndexOutOfBoundsException("Row " + y + " of " + height);
+		ByteBuffer chunk = chunks[y / rowsPerChunk].duplicate();
+		chunk.position((y % rowsPerChunk) * width);
+		return chunk;
+	}
+
+	// releases the scratch file, direct memory is freed when the buffer is collected
+	public void close() throws IOException {
+		if(raf != null) {
+			try {
+				raf.close();
+			} finally {
+				file.delete();
+			}
+		}
+	}
+}
@@ -0,0 +1,201 @@
+/*
+PalReplacer - Copyright (c) 2012 Hendrik Iben - hendrik [dot] iben <at> googlemail [dot] com
+
+Permission is hereby granted, free of charge, to any person obtaining a copy of
+this software and associated documentation files (the "Software"), to deal in
+the Software without restriction, including without limitation the rights to
+use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+of the Software, and to permit persons to whom the Software is furnished to do
+so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+
+
+package palreplacer;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+// GIF89a with a global color table and a single LZW compressed image
+// GIF has a single transparent index, for palettes with alpha the first
+// fully transparent entry is used.
+public class IndexedGifWriter extends IndexedImageWriter {
+	private static final int MAX_BITS = 12;
+	private static final int MAX_CODES = 1 << MAX_BITS;
+	// open addressing table for (prefix, pixel) -> code, larger than MAX_CODES
+	private static final int HASH_SIZE = 8192;
+
+	private final int tableBits;
+	private final int minCodeSize;
+	private final int clearCode;
+	private final int endCode;
+
+	private final int [] hashKeys = new int [HASH_SIZE];
+	private final short [] hashCodes = new short [HASH_SIZE];
+	private int nextCode;
+	private int codeSize;
+	// current string, -1 before the first pixel
+	private int prefix = -1;
+
+	// bit accumulator and data sub-block
+	private int bits = 0;
+	private int bitCount = 0;
+	private final byte [] block = new byte [256];
+	private int blockLength = 0;
+
+	public IndexedGifWriter(File out, int width, int height, int [] palette, boolean hasAlpha) throws IOException {
+		super(out, width, height, palette, hasAlpha);
+
+		int tb = 1;
+		while((1 << tb) < palette.length)
+			tb++;
+		tableBits = tb;
+		minCodeSize = Math.max(2, tableBits);
+		clearCode = 1 << minCodeSize;
+		endCode = clearCode + 1;
+	}
+
+	@Override
+	protected void writeHeader() throws IOException {
+		write(new byte [] { 'G', 'I', 'F', '8', '9', 'a' }, 0, 6);
+
+		// logical screen descriptor with global color table
+		writeShort(width);
+		writeShort(height);
+		write(0x80 | 0x70 | (tableBits - 1));
+		write(0); // background
+		write(0); // aspect ratio
+
+		int tableSize = 1 << tableBits;
+		for(int i=0; i<tableSize; i++) {
+			int c = i < palette.length ? palette[i] : 0;
+			write(c >> 16);
+			write(c >> 8);
+			write(c);
+		}
+
+		if(hasAlpha) {
+			int transparent = -1;
+			for(int i=0; i<palette.length && transparent < 0; i++) {
+				if((palette[i] >>> 24) == 0)
+					transparent = i;
+			}
+			if(transparent >= 0) {
+				// graphic control extension
+				write(0x21);
+				write(0xF9);
+				write(4);
+				write(0x01); // transparency flag
+				writeShort(0); // delay
+				write(transparent);
+				write(0);
+			}
+		}
+
+		// image descriptor
+		write(0x2C);
+		writeShort(0);
+		writeShort(0);
+		writeShort(width);
+		writeShort(height);
+		write(0); // no local table, not interlaced
+
+		write(minCodeSize);
+		resetTable();
+		writeCode(clearCode);
+	}
+
+	@Override
+	protected void encodeRow(byte [] indices, int offset) throws IOException {
+		int i = 0;
+		if(prefix < 0)
+			prefix = indices[offset + i++] & 0xFF;
+
+		for(; i<width; i++) {
+			int k = indices[offset+i] & 0xFF;
+			int key = (prefix << 8) | k;
+
+			int h = ((key * 0x9E3779B1) >>> 19) & (HASH_SIZE - 1);
+			while(hashKeys[h] != -1 && hashKeys[h] != key)
+				h = (h + 1) & (HASH_SIZE - 1);
+
+			if(hashKeys[h] == key) {
+				prefix = hashCodes[h];
+				continue;
+			}
+
+			writeCode(prefix);
+
+			if(nextCode < MAX_CODES) {
+				hashKeys[h] = key;
+				hashCodes[h] = (short)nextCode++;
+				// the decoder adds its entry one code later
+				if(nextCode > (1 << codeSize) && codeSize < MAX_BITS)
+					codeSize++;
+			} else {
+				writeCode(clearCode);
+				resetTable();
+			}
+
+			prefix = k;
+		}
+	}
+
+	@Override
+	protected void writeTrailer() throws IOException {
+		if(prefix >= 0)
+			writeCode(prefix);
+		writeCode(endCode);
+		if(bitCount > 0)
+			writeBlockByte(bits & 0xFF);
+		flushBlock();
+		write(0); // block terminator
+		write(0x3B);
+	}
+
+	private void resetTable() {
+		Arrays.fill(hashKeys, -1);
+		nextCode = endCode + 1;
+		codeSize = minCodeSize + 1;
+	}
+
+	private void writeCode(int code) throws IOException {
+		bits |= code << bitCount;
+		bitCount += codeSize;
+		while(bitCount >= 8) {
+			writeBlockByte(bits & 0xFF);
+			bits >>>= 8;
+			bitCount -= 8;
+		}
+	}
+
+	private void writeBlockByte(int b) throws IOException {
+		block[blockLength++] = (byte)b;
+		if(blockLength == 255)
+			flushBlock();
+	}
+
+	private void flushBlock() throws IOException {
+		if(blockLength == 0)
+			return;
+		write(blockLength);
+		write(block, 0, blockLength);
+		blockLength = 0;
+	}
+
+	private void writeShort(int v) throws IOException {
+		write(v & 0xFF);
+		write((v >> 8) & 0xFF);
+	}
+}
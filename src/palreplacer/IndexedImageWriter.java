@@ -0,0 +1,185 @@
+/*
+PalReplacer - Copyright (c) 2012 Hendrik Iben - hendrik [dot] iben <at> googlemail [dot] com
+
+Permission is hereby granted, free of charge, to any person obtaining a copy of
+this software and associated documentation files (the "Software"), to deal in
+the Software without restriction, including without limitation the rights to
+use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+of the Software, and to permit persons to whom the Software is furnished to do
+so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+
+
+package palreplacer;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+// writes indexed images row by row straight from index arrays
+// only the rows handed to writeRow need to be in memory, the image is
+// written to a FileChannel while it is produced. Supports PNG and GIF with
+// palettes up to 256 colors.
+public abstract class IndexedImageWriter {
+	protected final int width;
+	protected final int height;
+	protected final int [] palette;
+	protected final boolean hasAlpha;
+
+	private final FileOutputStream fos;
+	private final FileChannel channel;
+	private final ByteBuffer buffer = ByteBuffer.allocate(65536);
+	private int rows = 0;
+
+	protected IndexedImageWriter(File out, int width, int height, int [] palette, boolean hasAlpha) throws IOException {
+		if(palette.length > 256)
+			throw new IllegalArgumentException("Palette too large: " + palette.length);
+
+		this.width = width;
+		this.height = height;
+		this.palette = palette;
+		this.hasAlpha = hasAlpha;
+		this.fos = new FileOutputStream(out);
+		this.channel = fos.getChannel();
+	}
+
+	// true if there is a writer for the format name or file extension
+	public static boolean canWrite(String format, int paletteSize) {
+		if(paletteSize > 256)
+			return false;
+		String f = format.toLowerCase();
+		return f.equals("png") || f.equals("gif");
+	}
+
+	public static IndexedImageWriter create(String format, File out, int width, int height, int [] palette, boolean hasAlpha) throws IOException {
+		String f = format.toLowerCase();
+		if(f.equals("png"))
+			return new IndexedPngWriter(out, width, height, palette, hasAlpha);
+		if(f.equals("gif"))
+			return new IndexedGifWriter(out, width, height, palette, hasAlpha);
+		throw new IllegalArgumentException("Unsupported format: " + format);
+	}
+
+	// writes a complete image created by CompiledPalette.createImage
+	public static void write(BufferedImage indexed, CompiledPalette palette, String format, File out) throws IOException {
+		IndexedImageWriter writer = create(format, out, indexed.getWidth(), indexed.getHeight(), palette.getEntries(), palette.hasAlpha());
+		boolean ok = false;
+		try {
+			writer.writeRows(indexed);
+			ok = true;
+		} finally {
+			writer.close(ok);
+		}
+	}
+
+	// writes off-heap indices, one row at a time
+	public static void write(IndexBuffer indices, CompiledPalette palette, String format, File out) throws IOException {
+		IndexedImageWriter writer = create(format, out, indices.getWidth(), indices.getHeight(), palette.getEntries(), palette.hasAlpha());
+		boolean ok = false;
+		try {
+			writer.writeRows(indices);
+			ok = true;
+		} finally {
+			writer.close(ok);
+		}
+	}
+
+	// writes all rows of off-heap indices with the same width
+	public void writeRows(IndexBuffer indices) throws IOException {
+		if(indices.getWidth() != width)
+			throw new IllegalArgumentException("Width " + indices.getWidth() + " does not match " + width);
+
+		int h = indices.getHeight();
+		byte [] row = new byte [width];
+		for(int j=0; j<h; j++) {
+			indices.getRow(j, row, 0);
+			writeRow(row, 0);
+		}
+	}
+
+	// writes all rows of an image created by CompiledPalette.createImage
+	// the image may be a strip of the output, it must have the same width
+	public void writeRows(BufferedImage indexed) throws IOException {
+		if(indexed.getWidth() != width)
+			throw new IllegalArgumentException("Width " + indexed.getWidth() + " does not match " + width);
+
+		int h = indexed.getHeight();
+		byte [] indices = ((DataBufferByte)indexed.getRaster().getDataBuffer()).getData();
+		for(int j=0; j<h; j++)
+			writeRow(indices, j * width);
+	}
+
+	// writes the next row, width indices starting at offset
+	public void writeRow(byte [] indices, int offset) throws IOException {
+		if(rows >= height)
+			throw new IllegalStateException("All rows are written");
+		if(rows == 0)
+			writeHeader();
+		encodeRow(indices, offset);
+		rows++;
+	}
+
+	// finishes the image if all rows were written and closes the file
+	public void close(boolean complete) throws IOException {
+		try {
+			if(complete) {
+				if(rows != height)
+					throw new IllegalStateException("Only " + rows + " of " + height + " rows written");
+				writeTrailer();
+				flush();
+			}
+		} finally {
+			dispose();
+			fos.close();
+		}
+	}
+
+	// releases encoder resources, called on close
+	protected void dispose() {
+	}
+
+	protected abstract void writeHeader() throws IOException;
+
+	protected abstract void encodeRow(byte [] indices, int offset) throws IOException;
+
+	protected abstract void writeTrailer() throws IOException;
+
+	protected void write(int b) throws IOException {
+		if(!buffer.hasRemaining())
+			flush();
+		buffer.put((byte)b);
+	}
+
+	protected void write(byte [] data, int offset, int length) throws IOException {
+		while(length > 0) {
+			if(!buffer.hasRemaining())
+				flush();
+			int n = Math.min(length, buffer.remaining());
+			buffer.put(data, offset, n);
+			offset += n;
+			length -= n;
+		}
+	}
+
+	private void flush() throws IOException {
+		buffer.flip();
+		while(buffer.hasRemaining())
+			channel.write(buffer);
+		buffer.clear();
+	}
+}
@@ -0,0 +1,173 @@
+/*
+PalReplacer - Copyright (c) 2012 Hendrik Iben - hendrik [dot] iben <at> googlemail [dot] com
+
+Permission is hereby granted, free of charge, to any person obtaining a copy of
+this software and associated documentation files (the "Software"), to deal in
+the Software without restriction, including without limitation the rights to
+use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+of the Software, and to permit persons to whom the Software is furnished to do
+so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+
+
+package palreplacer;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+// PNG with color type 3 (palette)
+// uses the smallest bit depth for the palette size, writes tRNS for palettes
+// with alpha and deflates the rows without filtering, which is recommended
+// for palette images.
+public class IndexedPngWriter extends IndexedImageWriter {
+	private static final byte [] SIGNATURE = { (byte)137, 80, 78, 71, 13, 10, 26, 10 };
+
+	// IDAT chunks are written when this much compressed data is collected
+	private static final int IDAT_SIZE = 32768;
+
+	private final int bitDepth;
+	private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+	// filter byte and packed row
+	private final byte [] row;
+	private final byte [] idat = new byte [IDAT_SIZE];
+	private int idatLength = 0;
+
+	public IndexedPngWriter(File out, int width, int height, int [] palette, boolean hasAlpha) throws IOException {
+		super(out, width, height, palette, hasAlpha);
+
+		if(palette.length <= 2)
+			bitDepth = 1;
+		else if(palette.length <= 4)
+			bitDepth = 2;
+		else if(palette.length <= 16)
+			bitDepth = 4;
+		else
+			bitDepth = 8;
+
+		row = new byte [1 + (width * bitDepth + 7) / 8];
+	}
+
+	@Override
+	protected void writeHeader() throws IOException {
+		write(SIGNATURE, 0, SIGNATURE.length);
+
+		byte [] ihdr = new byte [13];
+		putInt(ihdr, 0, width);
+		putInt(ihdr, 4, height);
+		ihdr[8] = (byte)bitDepth;
+		ihdr[9] = 3; // palette
+		ihdr[10] = 0; // deflate
+		ihdr[11] = 0; // adaptive filtering
+		ihdr[12] = 0; // no interlace
+		writeChunk("IHDR", ihdr, ihdr.length);
+
+		byte [] plte = new byte [palette.length * 3];
+		for(int i=0; i<palette.length; i++) {
+			plte[i*3+0] = (byte)(palette[i] >> 16);
+			plte[i*3+1] = (byte)(palette[i] >> 8);
+			plte[i*3+2] = (byte)palette[i];
+		}
+		writeChunk("PLTE", plte, plte.length);
+
+		if(hasAlpha) {
+			// trailing opaque entries may be left out
+			int n = palette.length;
+			while(n > 0 && (palette[n-1] >>> 24) == 0xFF)
+				n--;
+			if(n > 0) {
+				byte [] trns = new byte [n];
+				for(int i=0; i<n; i++)
+					trns[i] = (byte)(palette[i] >>> 24);
+				writeChunk("tRNS", trns, n);
+			}
+		}
+	}
+
+	@Override
+	protected void encodeRow(byte [] indices, int offset) throws IOException {
+		row[0] = 0; // filter none
+		if(bitDepth == 8) {
+			System.arraycopy(indices, offset, row, 1, width);
+		} else {
+			int perByte = 8 / bitDepth;
+			int o = 1;
+			int v = 0;
+			int n = 0;
+			for(int i=0; i<width; i++) {
+				v = (v << bitDepth) | (indices[offset+i] & 0xFF);
+				if(++n == perByte) {
+					row[o++] = (byte)v;
+					v = 0;
+					n = 0;
+				}
+			}
+			if(n > 0)
+				row[o] = (byte)(v << (bitDepth * (perByte - n)));
+		}
+
+		deflater.setInput(row, 0, row.length);
+		while(!deflater.needsInput())
+			deflate();
+	}
+
+	@Override
+	protected void writeTrailer() throws IOException {
+		deflater.finish();
+		while(!deflater.finished())
+			deflate();
+		if(idatLength > 0)
+			writeChunk("IDAT", idat, idatLength);
+
+		writeChunk("IEND", idat, 0);
+	}
+
+	@Override
+	protected void dispose() {
+		deflater.end();
+	}
+
+	private void deflate() throws IOException {
+		idatLength += deflater.deflate(idat, idatLength, idat.length - idatLength);
+		if(idatLength == idat.length) {
+			writeChunk("IDAT", idat, idatLength);
+			idatLength = 0;
+		}
+	}
+
+	private void writeChunk(String type, byte [] data, int length) throws IOException {
+		byte [] header = new byte [8];
+		putInt(header, 0, length);
+		for(int i=0; i<4; i++)
+			header[4+i] = (byte)type.charAt(i);
+
+		CRC32 crc = new CRC32();
+		crc.update(header, 4, 4);
+		crc.update(data, 0, length);
+
+		write(header, 0, 8);
+		write(data, 0, length);
+		byte [] crcBytes = new byte [4];
+		putInt(crcBytes, 0, (int)crc.getValue());
+		write(crcBytes, 0, 4);
+	}
+
+	private static void putInt(byte [] b, int o, int v) {
+		b[o+0] = (byte)(v >>> 24);
+		b[o+1] = (byte)(v >>> 16);
+		b[o+2] = (byte)(v >>> 8);
+		b[o+3] = (byte)v;
+	}
+}
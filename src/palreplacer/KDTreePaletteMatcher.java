@@ -0,0 +1,178 @@
+/*
+PalReplacer - Copyright (c) 2012 Hendrik Iben - hendrik [dot] iben <at> googlemail [dot] com
+
+Permission is hereby granted, free of charge, to any person obtaining a copy of
+this software and associated documentation files (the "Software"), to deal in
+the Software without restriction, including without limitation the rights to
+use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+of the Software, and to permit persons to whom the Software is furnished to do
+so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+
+
+package palreplacer;
+
+import java.util.Arrays;
+
+// exact nearest palette entry search with a k-d tree
+// the tree is stored implicitly in a permutation of the palette indices:
+// the median of a range is the node, the halves below and above are the subtrees.
+// Distances are the weighted manhattan distances of Util.colorError, which allows
+// pruning a subtree by the weighted distance to its splitting plane.
+public class KDTreePaletteMatcher implements PaletteMatcher {
+	// ranges up to this size are scanned instead of split further
+	private static final int LEAF_SIZE = 8;
+
+	private final int [] rgb;
+	private final int [] weights;
+
+	// palette indices in tree order
+	private final int [] order;
+	// channel values of the ordered entries (r, g, b interleaved)
+	private final int [] channels;
+	// splitting channel for the node at a position, -1 for leaves
+	private final byte [] axis;
+
+	public KDTreePaletteMatcher(int [] rgb) {
+		if(rgb.length > 0x10000)
+			throw new IllegalArgumentException("Palette too large: " + rgb.length);
+
+		this.rgb = rgb;
+		this.weights = Util.std_error_weights.clone();
+
+		int n = rgb.length;
+		order = new int [n];
+		for(int i=0; i<n; i++)
+			order[i] = i;
+
+		channels = new int [n*3];
+		axis = new byte [n];
+
+		build(0, n);
+
+		for(int i=0; i<n; i++) {
+			int c = rgb[order[i]];
+			channels[i*3+0] = (c >> 16) & 0xFF;
+			channels[i*3+1] = (c >>  8) & 0xFF;
+			channels[i*3+2] = (c >>  0) & 0xFF;
+		}
+	}
+
+	private static int channel(int c, int a) {
+		return (c >> (16 - 8*a)) & 0xFF;
+	}
+
+	private void build(int lo, int hi) {
+		if(hi - lo <= LEAF_SIZE) {
+			for(int i=lo; i<hi; i++)
+				axis[i] = -1;
+			return;
+		}
+
+		// split on the channel with the largest weighted spread
+		int bestAxis = 0;
+		int bestSpread = -1;
+		for(int a=0; a<3; a++) {
+			int min = 255;
+			int max = 0;
+			for(int i=lo; i<hi; i++) {
+				int v = channel(rgb[order[i]], a);
+				if(v < min) min = v;
+				if(v > max) max = v;
+			}
+			int spread = (max - min) * weights[a];
+			if(spread > bestSpread) {
+				bestSpread = spread;
+				bestAxis = a;
+			}
+		}
+
+		sortRange(lo, hi, bestAxis);
+
+		int mid = (lo + hi) >>> 1;
+		axis[mid] = (byte)bestAxis;
+
+		build(lo, mid);
+		build(mid+1, hi);
+	}
+
+	// sorts a range of the order by channel value
+	// keys pack the channel above the palette index, so equal values keep index order
+	private void sortRange(int lo, int hi, int a) {
+		int [] keys = new int [hi - lo];
+		for(int i=lo; i<hi; i++)
+			keys[i-lo] = (channel(rgb[order[i]], a) << 16) | order[i];
+		Arrays.sort(keys);
+		for(int i=lo; i<hi; i++)
+			order[i] = keys[i-lo] & 0xFFFF;
+	}
+
+	@Override
+	public int [] getPalette() {
+		return rgb;
+	}
+
+	@Override
+	public int getBestColorIndex(int firstTry, int c) {
+		if(firstTry > -1 && firstTry < rgb.length) {
+			if( (rgb[firstTry]&0xFFFFFF) == (c&0xFFFFFF) )
+				return firstTry;
+		}
+
+		long best = search(0, order.length, c, Long.MAX_VALUE);
+
+		return (int)(best & 0xFFFF);
+	}
+
+	// best holds the error above the palette index, so the smaller value is
+	// the smaller error and for equal errors the lower index
+	private long search(int lo, int hi, int c, long best) {
+		if(lo >= hi)
+			return best;
+
+		int mid = (lo + hi) >>> 1;
+		int a = axis[mid];
+
+		if(a < 0) {
+			for(int i=lo; i<hi; i++)
+				best = check(i, c, best);
+			return best;
+		}
+
+		best = check(mid, c, best);
+
+		int d = channel(c, a) - channels[mid*3+a];
+		int nlo, nhi, flo, fhi;
+		if(d < 0) {
+			nlo = lo; nhi = mid; flo = mid+1; fhi = hi;
+		} else {
+			nlo = mid+1; nhi = hi; flo = lo; fhi = mid;
+		}
+
+		best = search(nlo, nhi, c, best);
+
+		// equal distances must still be visited for lower index ties
+		if(Math.abs(d) * weights[a] <= (best >>> 16))
+			best = search(flo, fhi, c, best);
+		return best;
+	}
+
+	private long check(int pos, int c, long best) {
+		long e = Math.abs(((c >> 16) & 0xFF) - channels[pos*3+0]) * weights[0]
+			+ Math.abs(((c >>  8) & 0xFF) - channels[pos*3+1]) * weights[1]
+			+ Math.abs(((c >>  0) & 0xFF) - channels[pos*3+2]) * weights[2];
+		long packed = (e << 16) | order[pos];
+		return packed < best ? packed : best;
+	}
+}
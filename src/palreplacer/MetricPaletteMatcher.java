@@ -0,0 +1,86 @@
+/*
+PalReplacer - Copyright (c) 2012 Hendrik Iben - hendrik [dot] iben <at> googlemail [dot] com
+
+Permission is hereby granted, free of charge, to any person obtaining a copy of
+this software and associated documentation files (the "Software"), to deal in
+the Software without restriction, including without limitation the rights to
+use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+of the Software, and to permit persons to whom the Software is furnished to do
+so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+
+
+package palreplacer;
+
+// scan over all palette entries with any ColorMetric
+// the palette is transformed into the space of the metric once, each query
+// transforms its color once. Same rules as Util.getBestColorIndex: an exact
+// match at firstTry wins, otherwise the lowest index with the smallest distance.
+public class MetricPaletteMatcher implements PaletteMatcher {
+	private final int [] rgb;
+	private final ColorMetric metric;
+	private final int dimensions;
+	private final double [] space;
+	// transformed query color of each thread
+	private final ThreadLocal<double []> query;
+
+	public MetricPaletteMatcher(int [] rgb, ColorMetric metric) {
+		this.rgb = rgb;
+		this.metric = metric;
+		this.dimensions = metric.getDimensions();
+		this.space = new double [rgb.length * dimensions];
+		for(int i=0; i<rgb.length; i++)
+			metric.transform(rgb[i], space, i * dimensions);
+
+		final int dimensions = this.dimensions;
+		query = new ThreadLocal<double []>() {
+			@Override
+			protected double [] initialValue() {
+				return new double [dimensions];
+			}
+		};
+	}
+
+	public ColorMetric getMetric() {
+		return metric;
+	}
+
+	@Override
+	public int [] getPalette() {
+		return rgb;
+	}
+
+	@Override
+	public int getBestColorIndex(int firstTry, int c) {
+		if(firstTry > -1 && firstTry < rgb.length) {
+			if( (rgb[firstTry]&0xFFFFFF) == (c&0xFFFFFF) )
+				return firstTry;
+		}
+
+		double [] q = query.get();
+		metric.transform(c, q, 0);
+
+		int bestIndex = 0;
+		double bestError = metric.distance(space, 0, q, 0);
+		for(int i=1; i<rgb.length; i++) {
+			double e = metric.distance(space, i * dimensions, q, 0);
+			if(e < bestError) {
+				bestIndex = i;
+				bestError = e;
+			}
+		}
+
+		return bestIndex;
+	}
+}
@@ -0,0 +1,148 @@
+/*
+PalReplacer - Copyright (c) 2012 Hendrik Iben - hendrik [dot] iben <at> googlemail [dot] com
+
+Permission is hereby granted, free of charge, to any person obtaining a copy of
+this software and associated documentation files (the "Software"), to deal in
+the Software without restriction, including without limitation the rights to
+use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+of the Software, and to permit persons to whom the Software is furnished to do
+so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+
+
+package palreplacer;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+// ordered dithering with a tiled threshold map
+// every pixel is offset by the threshold of its position, scaled to the
+// spacing of the palette, and looked up in the dither table of the palette.
+// Pixels that are palette colors keep their index and are not offset.
+// Pixels depend only on their position and color, so bands of rows are
+// dithered on all pool threads and the result does not depend on the
+// number of threads.
+public class OrderedDither extends Ditherer {
+	private final char [] table;
+	private final ExactColorTable exact;
+	private final int bits;
+	private final int size;
+	// channel offset per map cell
+	private final int [] offsets;
+
+	// image row of the next row
+	private int row = 0;
+
+	public OrderedDither(CompiledPalette palette, DitherMethod method, int width, ForkJoinPool pool) {
+		super(palette, width, pool);
+
+		this.table = palette.getDitherTable();
+		this.exact = palette.getExactTable();
+		this.bits = CompiledPalette.DITHER_BITS;
+		this.size = method.getMapSize();
+
+		// a palette spread evenly over the rgb cube has about cbrt(n) levels
+		// per channel, the offsets cover the distance between two levels
+		double levels = Math.cbrt(palette.size());
+		int spread = levels <= 2.0 ? 255 : (int)Math.round(255.0 / (levels - 1.0));
+
+		int [] ranks = ThresholdMap.forMethod(method);
+		int cells = size * size;
+		offsets = new int [cells];
+		for(int c=0; c<cells; c++)
+			offsets[c] = (int)Math.round(((ranks[c] + 0.5) / cells - 0.5) * spread);
+	}
+
+	@Override
+	public void ditherRows(PixelReader reader, Object target, int y0, int y1) {
+		// map row of y0
+		int first = row;
+		int bandRows = ImageConverter.getBandRows(pool, width, y1 - y0);
+		if(bandRows >= y1 - y0) {
+			ditherBand(reader, target, y0, y1, first);
+		} else {
+			Bands bands = new Bands(reader, target, y0, y1, first, bandRows);
+			if(ForkJoinTask.getPool() == pool)
+				bands.invoke();
+			else
+				pool.invoke(bands);
+		}
+		row += y1 - y0;
+	}
+
+	private void ditherBand(PixelReader reader, Object target, int y0, int y1, int first) {
+		int [] line = new int [width];
+		int mask = size - 1;
+		int cellShift = 8 - bits;
+
+		for(int j=y0; j<y1; j++) {
+			reader.readRow(j, 0, width, line);
+			int mapRow = ((first + j - y0) & mask) * size;
+
+			for(int i=0; i<width; i++) {
+				int c = line[i];
+				int index = exact.get(c);
+				if(index >= 0) {
+					line[i] = index;
+					continue;
+				}
+				int d = offsets[mapRow + (i & mask)];
+
+				int r = ((c >> 16) & 0xFF) + d;
+				int g = ((c >>  8) & 0xFF) + d;
+				int b = ((c >>  0) & 0xFF) + d;
+				r = r < 0 ? 0 : (r > 255 ? 255 : r);
+				g = g < 0 ? 0 : (g > 255 ? 255 : g);
+				b = b < 0 ? 0 : (b > 255 ? 255 : b);
+
+				line[i] = table[((r >> cellShift) << (2 * bits)) | ((g >> cellShift) << bits) | (b >> cellShift)];
+			}
+
+			storeRow(line, target, j);
+		}
+	}
+
+	// splits a range of rows in halves until it is no larger than a band
+	private class Bands extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final PixelReader reader;
+		private final Object target;
+		private final int y0;
+		private final int y1;
+		private final int first;
+		private final int bandRows;
+
+		Bands(PixelReader reader, Object target, int y0, int y1, int first, int bandRows) {
+			this.reader = reader;
+			this.target = target;
+			this.y0 = y0;
+			this.y1 = y1;
+			this.first = first;
+			this.bandRows = bandRows;
+		}
+
+		@Override
+		protected void compute() {
+			if(y1 - y0 <= bandRows) {
+				ditherBand(reader, target, y0, y1, first);
+				return;
+			}
+
+			int mid = y0 + (((y1 - y0) / bandRows + 1) / 2) * bandRows;
+			invokeAll(new Bands(reader, target, y0, mid, first, bandRows), new Bands(reader, target, mid, y1, first + mid - y0, bandRows));
+		}
+	}
+}
@@ -26,10 +26,8 @@ import static palreplacer.Util.fileExt;
 import static palreplacer.Util.fileFilterGPL;
 import static palreplacer.Util.fileFilterImage;
 import static palreplacer.Util.fileFilterPal;
-import static palreplacer.Util.getExt;
 import static palreplacer.Util.getGIMPPalette;
 import static palreplacer.Util.getImagePaletteData;
-import static palreplacer.Util.getNameNoExt;
 import static palreplacer.Util.getRawPaletteData;
 import static palreplacer.Util.setACAndText;
 import static palreplacer.Util.setToolTip;
@@ -38,7 +36,7 @@ import static palreplacer.Util.withKeyStroke;
 import java.awt.BorderLayout;
 import java.awt.Component;
 import java.awt.EventQueue;
-import java.awt.Graphics2D;
+import java.awt.Font;
 import java.awt.GraphicsDevice;
 import java.awt.GridBagConstraints;
 import java.awt.GridBagLayout;
@@ -51,13 +49,11 @@ import java.awt.dnd.DnDConstants;
 import java.awt.dnd.DropTarget;
 import java.awt.dnd.DropTargetDropEvent;
 import java.awt.event.ActionEvent;
+import java.awt.event.ItemEvent;
+import java.awt.event.ItemListener;
 import java.awt.event.KeyEvent;
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
-import java.awt.image.BufferedImage;
-import java.awt.image.ColorModel;
-import java.awt.image.DataBuffer;
-import java.awt.image.IndexColorModel;
 import java.beans.PropertyChangeEvent;
 import java.beans.PropertyChangeListener;
 import java.io.BufferedReader;
@@ -68,6 +64,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.Reader;
+import java.util.ArrayList;
 import java.util.List;
 
 import javax.imageio.ImageIO;
@@ -78,6 +75,7 @@ import javax.swing.ButtonGroup;
 import javax.swing.DefaultListModel;
 import javax.swing.JButton;
 import javax.swing.JCheckBox;
+import javax.swing.JComboBox;
 import javax.swing.JComponent;
 import javax.swing.JDialog;
 import javax.swing.JFileChooser;
@@ -92,9 +90,13 @@ import javax.swing.JPanel;
 import javax.swing.JProgressBar;
 import javax.swing.JRadioButton;
 import javax.swing.JScrollPane;
+import javax.swing.JSpinner;
+import javax.swing.JTextArea;
 import javax.swing.JTextField;
 import javax.swing.KeyStroke;
+import javax.swing.SpinnerNumberModel;
 
+import palreplacer.ConversionOptions.Overwrite;
 import palreplacer.Util.PaletteExtractionException;
 
 public class PalReplacer implements Runnable {
@@ -124,6 +126,10 @@ public class PalReplacer implements Runnable {
 	private JRadioButton rbOverwriteYes;
 
 	private JCheckBox cbNoDithering;
+	private JComboBox<DitherMethod> cbDitherMethod;
+	private JComboBox<ColorMetric> cbColorMetric;
+	private JSpinner spThreads;
+	private JCheckBox cbIncremental;
 	
 	public static final String acLoadPalette = "loadpalette";
 	public static final String acSavePalette = "savepalette";
@@ -167,20 +173,17 @@ public class PalReplacer implements Runnable {
 			File f = openpalChooser.getSelectedFile();
 			FileInputStream fis = null;
 			try {
-				fis = new FileInputStream(f);
 				boolean [] alphaPal = new boolean [] { alphaCheck.isSelected() };
 				int [] paldata = null;
 				if(openpalChooser.getFileFilter() == fileFilterPal || fileExt(f).equals("pal")) {
-					paldata = getRawPaletteData(fis, alphaPal[0]);
+					paldata = getRawPaletteData(f, alphaPal[0]);
 				} else {
 					if(openpalChooser.getFileFilter() == fileFilterGPL || fileExt(f).equals("gpl")) {
 						alphaPal[0] = false;
+						fis = new FileInputStream(f);
 						paldata = getGIMPPalette(fis);
 					} else {
-						BufferedImage bi = ImageIO.read(fis);
-						if(bi == null)
-							throw new PaletteExtractionException("Unable to read image!");
-						paldata = getImagePaletteData(bi, alphaPal);
+						paldata = getImagePaletteData(f, alphaPal);
 					}
 				}
 				assert(paldata!=null);
@@ -300,7 +303,7 @@ public class PalReplacer implements Runnable {
 		public void actionPerformed(ActionEvent ae) {
 			JButton source = (JButton)ae.getSource();
 			ConversionThread ct = (ConversionThread)source.getClientProperty(dConvThread);
-			ct.stopConversion = true;
+			ct.stopConversion();
 		}
 	};
 	
@@ -318,154 +321,124 @@ public class PalReplacer implements Runnable {
 	
 	// this thread handles the actual file conversion
 	// on start, it sets the cancel-dialog visible and blocks the application UI
-	private class ConversionThread extends Thread {
+	// the files themselves are converted by the worker threads of the BatchConverter
+	private class ConversionThread extends Thread implements BatchConverter.Listener {
 		private JDialog dialog;
 		private JProgressBar progress;
-		private boolean stopConversion = false;
+		private BatchConverter converter;
+		private List<File> files = new ArrayList<File>();
+		
+		private boolean overwriteAsk = true;
+		private boolean overwriteAnswer = false;
 		
 		public ConversionThread(JDialog dialog, JProgressBar progressBar) {
 			this.dialog = dialog;
 			this.progress = progressBar;
-		}
-		
-		public void run() {
-			new DialogSwitch(dialog).start();
-			yield();
 			
-			boolean hadErrors = false;
-			
-			boolean neverOverwrite = rbOverwriteNo.isSelected();
-			boolean overwriteAsk = rbOverwriteAsk.isSelected();
-			
-			boolean noDither = cbNoDithering.isSelected();
+			ConversionOptions options = new ConversionOptions();
+			options.outdir = outdir;
+			options.outFormat = tfOutFormat.getText();
+			options.noDither = cbNoDithering.isSelected();
+			options.dither = (DitherMethod)cbDitherMethod.getSelectedItem();
+			options.threads = ((Number)spThreads.getValue()).intValue();
+			options.incremental = cbIncremental.isSelected();
+			if(rbOverwriteNo.isSelected())
+				options.overwrite = Overwrite.NO;
+			else if(rbOverwriteYes.isSelected())
+				options.overwrite = Overwrite.YES;
+			else
+				options.overwrite = Overwrite.ASK;
 			
 			synchronized(lm) {
-				int [] rgbdata = paldisp.getEntries();
-				int bits = (int)Math.ceil( Math.log(rgbdata.length) / Math.log(2) );
-				int type = bits > 8 ? DataBuffer.TYPE_USHORT : DataBuffer.TYPE_BYTE;
-				IndexColorModel icm = new IndexColorModel(bits, rgbdata.length, rgbdata, 0, paldisp.hasAlpha(), -1, type);
 				int size = lm.getSize();
 				for(int file_index=0; file_index<size; file_index++) {
-					String s = (String)lm.get(file_index);
-					File f = new File(s);
-					
-					try {
-						if(stopConversion)
-							break;
-						String fname = f.getName();
-						String ext = getExt(fname);
-						String name = getNameNoExt(fname);
-
-						String out =  String.format(tfOutFormat.getText(), name, ext);
-						if(out.length() == 0) {
-							out = fname;
-						}
-
-						File outFile = new File(outdir, out);
-
-						boolean doWrite = true;
-
-						if(neverOverwrite || overwriteAsk) {
-							if(outFile.exists()) {
-								if(neverOverwrite) {
-									doWrite = false;
-								} else {
-									doWrite = false;
-									JCheckBox overrideAsk = new JCheckBox("Ask again", true);
-									int res = JOptionPane.showConfirmDialog(frame, new Object [] { "File '" + out + "' exist. Overwrite ?", overrideAsk }, "File exists...", JOptionPane.YES_NO_CANCEL_OPTION);
-									if(res == JOptionPane.CANCEL_OPTION) {
-										stopConversion = true;
-									}
-									if(res == JOptionPane.YES_OPTION) {
-										doWrite = true;
-									}
-									if(!overrideAsk.isSelected()) {
-										overwriteAsk = false;
-										neverOverwrite = !doWrite;	
-									}
-								}
-							}
-						}
-						if(doWrite) {
-							BufferedImage bi = ImageIO.read(f);
-							if(bi!=null) {
-								BufferedImage target = new BufferedImage(bi.getWidth(), bi.getHeight(), BufferedImage.TYPE_BYTE_INDEXED, icm);
-								
-								if(noDither) {
-									ColorModel cm = bi.getColorModel();
-									int w = bi.getWidth();
-									int h = bi.getHeight();
-									
-									if(bi.getType() == BufferedImage.TYPE_BYTE_INDEXED && cm instanceof IndexColorModel) {
-										// converting byte index
-										IndexColorModel bi_icm = (IndexColorModel)cm;
-										int isize = bi_icm.getMapSize();
-										int [] bi_rgb = new int [isize];
-										bi_icm.getRGBs(bi_rgb);
-										
-										byte [] index_map = new byte [isize];
-										
-										// first get best match for used colors
-										for(int ci=0; ci<isize; ci++) {
-											index_map[ci] = (byte)Util.getBestColorIndex(rgbdata, ci, bi_rgb[ci]);
-										}
-										
-										byte [] indices = (byte [])bi.getRaster().getDataElements(0, 0, w, h, null);
-										
-										// now simply map indices
-										for(int i=0; i<indices.length; i++) {
-											indices[i] = index_map[((int)indices[i])&0xFF];
-										}
-										
-										target.getRaster().setDataElements(0, 0, w, h, indices);																				
-									} else {
-										// converting by rgb
-										int [] rgb_line = new int [w];
-										byte [] indices = new byte [w];
-										
-										// caching colors makes no sense
-										// I tried and it was slower (overhead)
-										for(int j=0; j<h; j++) {
-											bi.getRGB(0, j, w, 1, rgb_line, 0, w);
-											
-											for(int i=0; i<w; i++) {
-												int target_color = rgb_line[i];
-												indices[i] = (byte)Util.getBestColorIndex(rgbdata, -1, target_color);
-											}
-											
-											target.getRaster().setDataElements(0, j, w, 1, indices);
-										}
-									}
-								} else {
-									Graphics2D g2d = target.createGraphics();
-									g2d.drawImage(bi, null, 0, 0);
-								}
-
-								String outExt = getExt(out);
-								if(outExt.length() == 0)
-									outExt = ext;
-								if(outExt.length() == 0)
-									outExt = "png";
-
-								ImageIO.write(target, outExt, outFile);
-							} else {
-								hadErrors = true;
-							}
-						}
-						if(stopConversion)
-							break;
-					} catch (IOException e) {
-						hadErrors = true;
-					}
-					
-					progress.setValue(file_index);
+					files.add(new File((String)lm.get(file_index)));
 				}
 			}
 			
+			CompiledPalette palette = new CompiledPalette(paldisp.getEntries(), paldisp.hasAlpha(), (ColorMetric)cbColorMetric.getSelectedItem());
+			converter = new BatchConverter(palette, options, this);
+		}
+		
+		public void stopConversion() {
+			converter.cancel();
+		}
+		
+		@Override
+		public boolean confirmOverwrite(File outFile) {
+			if(!overwriteAsk)
+				return overwriteAnswer;
+			
+			boolean doWrite = false;
+			JCheckBox overrideAsk = new JCheckBox("Ask again", true);
+			int res = JOptionPane.showConfirmDialog(frame, new Object [] { "File '" + outFile.getName() + "' exist. Overwrite ?", overrideAsk }, "File exists...", JOptionPane.YES_NO_CANCEL_OPTION);
+			if(res == JOptionPane.CANCEL_OPTION) {
+				converter.cancel();
+			}
+			if(res == JOptionPane.YES_OPTION) {
+				doWrite = true;
+			}
+			if(!overrideAsk.isSelected()) {
+				overwriteAsk = false;
+				overwriteAnswer = doWrite;
+			}
+			return doWrite;
+		}
+		
+		@Override
+		public void fileFinished(int index, File input, String error) {
+			final int done = converter.getFinishedCount();
+			EventQueue.invokeLater(new Runnable() {
+				public void run() {
+					if(progress.getValue() < done)
+						progress.setValue(done);
+				}
+			});
+		}
+		
+		public void run() {
+			new DialogSwitch(dialog).start();
+			Thread.yield();
+			
+			boolean ok = converter.run(files);
+			
 			dialog.setVisible(false);
 			
-			if(!stopConversion && hadErrors) {
-				JOptionPane.showMessageDialog(frame, "There were some errors while converting...", "Errors...", JOptionPane.ERROR_MESSAGE);
+			showSummary(converter, !converter.isCancelled() && !ok);
+		}
+	}
+	
+	private JFileChooser reportChooser;
+	
+	// times and throughput of a finished conversion, with the errors and an option to save the report
+	private void showSummary(BatchConverter converter, boolean hadErrors) {
+		StringBuilder sb = new StringBuilder(converter.getStats().getSummary());
+		List<String> errors = converter.getErrors();
+		if(!errors.isEmpty()) {
+			sb.append("\nErrors:\n");
+			for(String error : errors)
+				sb.append(error).append('\n');
+		}
+		
+		JTextArea text = new JTextArea(sb.toString(), Math.min(20, sb.toString().split("\n").length), 72);
+		text.setEditable(false);
+		text.setFont(new Font(Font.MONOSPACED, Font.PLAIN, text.getFont().getSize()));
+		
+		Object [] message = new Object [] { hadErrors ? "There were some errors while converting..." : "Conversion finished.", new JScrollPane(text) };
+		Object [] options = new Object [] { "OK", "Save report..." };
+		int res = JOptionPane.showOptionDialog(frame, message, hadErrors ? "Errors..." : "Conversion summary", JOptionPane.DEFAULT_OPTION, hadErrors ? JOptionPane.ERROR_MESSAGE : JOptionPane.INFORMATION_MESSAGE, null, options, options[0]);
+		if(res != 1)
+			return;
+		
+		if(reportChooser==null) {
+			reportChooser = new JFileChooser();
+			reportChooser.setSelectedFile(new File("palreplacer-report.json"));
+		}
+		if(reportChooser.showSaveDialog(frame) == JFileChooser.APPROVE_OPTION) {
+			try {
+				converter.getStats().writeJson(reportChooser.getSelectedFile());
+			} catch (IOException e) {
+				JOptionPane.showMessageDialog(frame, "Error writing report: " + e.getMessage(), "Error...", JOptionPane.ERROR_MESSAGE);
 			}
 		}
 	}
@@ -712,6 +685,15 @@ public class PalReplacer implements Runnable {
 		paletteBtnPanel.add(setACAndText(new JButton(fileAction), acLoadPalette, "Load..."));
 		paletteBtnPanel.add(setACAndText(new JButton(fileAction), acSavePalette, "Save..."));
 		paletteBtnPanel.add(setToolTip(cbNoDithering = new JCheckBox("no dithering", true), "process each pixel individually"));
+		paletteBtnPanel.add(setToolTip(cbDitherMethod = new JComboBox<DitherMethod>(DitherMethod.values()), "error diffusion or ordered dithering method"));
+		cbDitherMethod.setEnabled(false);
+		paletteBtnPanel.add(setToolTip(cbColorMetric = new JComboBox<ColorMetric>(ColorMetric.values()), "distance used to find the closest palette color"));
+		cbNoDithering.addItemListener(new ItemListener() {
+			@Override
+			public void itemStateChanged(ItemEvent e) {
+				cbDitherMethod.setEnabled(!cbNoDithering.isSelected());
+			}
+		});
 		
 		gbc.gridx = 0;
 		gbc.gridy = 1;
@@ -888,6 +870,39 @@ public class PalReplacer implements Runnable {
 		gbl.setConstraints(buttonBag, gbc);
 		outoptsPanel.add(buttonBag);
 		
+		// number of worker threads
+		JLabel threadsLabel = new JLabel("Threads:");
+		
+		gbc.gridx = 0;
+		gbc.gridy = 3;
+		gbc.weightx = 0.0;
+		gbc.weighty = 0.0;
+		gbc.gridwidth = 1;
+		gbc.fill = GridBagConstraints.NONE;
+		gbc.anchor = GridBagConstraints.LINE_START;
+		gbl.setConstraints(threadsLabel, gbc);
+		outoptsPanel.add(threadsLabel);
+		
+		int cpus = Runtime.getRuntime().availableProcessors();
+		spThreads = new JSpinner(new SpinnerNumberModel(cpus, 1, Math.max(64, cpus), 1));
+		spThreads.setToolTipText("Number of files converted at the same time");
+		
+		gbc.gridx = 1;
+		gbc.gridy = 3;
+		gbc.weightx = 1.0;
+		gbc.weighty = 1.0;
+		gbc.gridwidth = 2;
+		gbc.fill = GridBagConstraints.NONE;
+		gbc.anchor = GridBagConstraints.LINE_START;
+		
+		JPanel threadsBag = new JPanel();
+		threadsBag.add(spThreads);
+		threadsBag.add(cbIncremental = new JCheckBox("skip up to date files", false));
+		cbIncremental.setToolTipText("Remember converted files in the output directory and skip them if input, palette and options did not change");
+		
+		gbl.setConstraints(threadsBag, gbc);
+		outoptsPanel.add(threadsBag);
+		
 		// Add containers to frame
 		frame.add(eastPanel, BorderLayout.EAST);
 		frame.add(filesPanel, BorderLayout.CENTER);
@@ -896,7 +911,15 @@ public class PalReplacer implements Runnable {
 		frame.setVisible(true);
 	}
 
+	// without arguments the user interface is started, otherwise
+	// the files are converted on the command line without initializing AWT
 	public static void main(String...args) {
+		// inputs are read from files or memory (see FileInput), a disk cache only adds copies
+		ImageIO.setUseCache(false);
+		if(args.length > 0) {
+			CommandLine.main(args);
+			return;
+		}
 		EventQueue.invokeLater(new PalReplacer());
 	}
 }
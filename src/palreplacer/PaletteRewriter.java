@@ -0,0 +1,535 @@
+/*
+PalReplacer - Copyright (c) 2012 Hendrik Iben - hendrik [dot] iben <at> googlemail [dot] com
+
+Permission is hereby granted, free of charge, to any person obtaining a copy of
+this software and associated documentation files (the "Software"), to deal in
+the Software without restriction, including without limitation the rights to
+use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+of the Software, and to permit persons to whom the Software is furnished to do
+so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+
+
+package palreplacer;
+
+import java.awt.Dimension;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+// converts indexed PNG and GIF files without decoding them into images
+// only the palette is read, the index stream is unpacked row by row, mapped
+// with the index map of the source palette and handed to an IndexedImageWriter.
+// The source palette is padded like ImageIO does, so the index maps are the
+// same as for a decoded image and shared through the RemapCache.
+// Interlaced PNGs and anything but palette PNGs are left to the regular path.
+// Of a GIF the first image is converted, like ImageIO.read does.
+public class PaletteRewriter {
+	private static final byte [] PNG_SIGNATURE = { (byte)137, 80, 78, 71, 13, 10, 26, 10 };
+	// signature and IHDR chunk up to the interlace method
+	private static final int HEADER_BYTES = 29;
+
+	private final CompiledPalette palette;
+	private final ImageConverter converter;
+
+	public PaletteRewriter(CompiledPalette palette, ImageConverter converter) {
+		this.palette = palette;
+		this.converter = converter;
+	}
+
+	// true if the output format can be written by this class
+	public boolean canWrite(String outFormat) {
+		return IndexedImageWriter.canWrite(outFormat, palette.size());
+	}
+
+	// converts in to out, returns the image size or null if in is not a file that can be rewritten
+	public Dimension rewrite(File in, File out, String outFormat) throws IOException {
+		// other files are decoded afterwards, so they are only read completely once
+		if(!mayRewrite(readHeader(in)))
+			return null;
+
+		byte [] data = Files.readAllBytes(in.toPath());
+
+		if(startsWith(data, PNG_SIGNATURE))
+			return rewritePNG(data, out, outFormat);
+
+		if(startsWith(data, "GIF87a".getBytes("ISO-8859-1")) || startsWith(data, "GIF89a".getBytes("ISO-8859-1")))
+			return rewriteGIF(data, out, outFormat);
+
+		return null;
+	}
+
+	// the first HEADER_BYTES of a file or less if it is shorter
+	private static byte [] readHeader(File in) throws IOException {
+		FileChannel fc = FileChannel.open(in.toPath(), StandardOpenOption.READ);
+		try {
+			ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+			while(header.hasRemaining() && fc.read(header) > 0);
+			byte [] data = new byte [header.position()];
+			header.flip();
+			header.get(data);
+			return data;
+		} finally {
+			fc.close();
+		}
+	}
+
+	// false if the header shows that rewrite would return null
+	private static boolean mayRewrite(byte [] header) throws IOException {
+		if(startsWith(header, "GIF87a".getBytes("ISO-8859-1")) || startsWith(header, "GIF89a".getBytes("ISO-8859-1")))
+			return true;
+		if(!startsWith(header, PNG_SIGNATURE))
+			return false;
+
+		// IHDR has to be the first chunk, anything else is left to rewritePNG
+		int start = PNG_SIGNATURE.length + 8;
+		if(header.length < HEADER_BYTES || !new String(header, start-4, 4, "ISO-8859-1").equals("IHDR"))
+			return true;
+		return u8(header, start+9) == 3 && u8(header, start+12) == 0;
+	}
+
+	private static boolean startsWith(byte [] data, byte [] prefix) {
+		if(data.length < prefix.length)
+			return false;
+		for(int i=0; i<prefix.length; i++) {
+			if(data[i] != prefix[i])
+				return false;
+		}
+		return true;
+	}
+
+	private static int u8(byte [] d, int o) {
+		return d[o] & 0xFF;
+	}
+
+	private static int u16le(byte [] d, int o) {
+		return (d[o] & 0xFF) | ((d[o+1] & 0xFF) << 8);
+	}
+
+	private static int u32be(byte [] d, int o) {
+		return ((d[o] & 0xFF) << 24) | ((d[o+1] & 0xFF) << 16) | ((d[o+2] & 0xFF) << 8) | (d[o+3] & 0xFF);
+	}
+
+	// writes rows of remapped indices, deletes the output if anything fails
+	private class RowSink {
+		private final IndexedImageWriter writer;
+		private final File out;
+		private final byte [] map;
+		private final byte [] row;
+
+		RowSink(File out, String outFormat, int w, int h, int [] srcPalette) throws IOException {
+			this.out = out;
+			this.map = (byte [])converter.getIndexMap(srcPalette, true);
+			this.row = new byte [w];
+			this.writer = IndexedImageWriter.create(outFormat, out, w, h, palette.getEntries(), palette.hasAlpha());
+		}
+
+		void write(byte [] indices, int offset) throws IOException {
+			for(int i=0; i<row.length; i++)
+				row[i] = map[indices[offset+i] & 0xFF];
+			writer.writeRow(row, 0);
+		}
+
+		void close(boolean ok) throws IOException {
+			try {
+				writer.close(ok);
+			} finally {
+				if(!ok)
+					out.delete();
+			}
+		}
+	}
+
+	private Dimension rewritePNG(byte [] data, File out, String outFormat) throws IOException {
+		int w = 0, h = 0, depth = 0;
+		int [] srcPalette = null;
+		byte [] trns = null;
+		int idatStart = -1;
+
+		int pos = PNG_SIGNATURE.length;
+		while(pos + 8 <= data.length) {
+			int length = u32be(data, pos);
+			String type = new String(data, pos+4, 4, "ISO-8859-1");
+			int start = pos + 8;
+			if(length < 0 || start + length > data.length)
+				throw new IOException("truncated PNG chunk " + type);
+
+			if(type.equals("IHDR")) {
+				w = u32be(data, start);
+				h = u32be(data, start+4);
+				depth = u8(data, start+8);
+				int colorType = u8(data, start+9);
+				int interlace = u8(data, start+12);
+				if(colorType != 3 || interlace != 0)
+					return null;
+			} else if(type.equals("PLTE")) {
+				srcPalette = new int [1 << depth];
+				// missing entries are opaque black like in ImageIO
+				for(int i=0; i<srcPalette.length; i++)
+					srcPalette[i] = 0xFF000000;
+				for(int i=0; i<length/3 && i<srcPalette.length; i++)
+					srcPalette[i] = 0xFF000000 | (u8(data, start+i*3) << 16) | (u8(data, start+i*3+1) << 8) | u8(data, start+i*3+2);
+			} else if(type.equals("tRNS")) {
+				trns = new byte [length];
+				System.arraycopy(data, start, trns, 0, length);
+			} else if(type.equals("IDAT")) {
+				if(idatStart < 0)
+					idatStart = pos;
+			} else if(type.equals("IEND")) {
+				break;
+			}
+
+			pos = start + length + 4;
+		}
+
+		if(srcPalette == null || idatStart < 0 || w <= 0 || h <= 0)
+			return null;
+
+		if(trns != null) {
+			for(int i=0; i<trns.length && i<srcPalette.length; i++)
+				srcPalette[i] = (srcPalette[i] & 0xFFFFFF) | ((trns[i] & 0xFF) << 24);
+		}
+
+		int stride = (w * depth + 7) / 8;
+		byte [] prev = new byte [stride + 1];
+		byte [] cur = new byte [stride + 1];
+		byte [] indices = new byte [w];
+
+		Inflater inflater = new Inflater();
+		RowSink sink = new RowSink(out, outFormat, w, h, srcPalette);
+		boolean ok = false;
+		try {
+			int chunk = idatStart;
+			for(int j=0; j<h; j++) {
+				int filled = 0;
+				while(filled < cur.length) {
+					if(inflater.needsInput()) {
+						// next IDAT chunk, they are consecutive
+						if(chunk < 0 || chunk + 8 > data.length || !new String(data, chunk+4, 4, "ISO-8859-1").equals("IDAT"))
+							throw new IOException("truncated PNG image data");
+						int length = u32be(data, chunk);
+						inflater.setInput(data, chunk + 8, length);
+						chunk = chunk + 12 + length;
+					}
+					int n = inflater.inflate(cur, filled, cur.length - filled);
+					if(n == 0 && inflater.finished())
+						throw new IOException("truncated PNG image data");
+					filled += n;
+				}
+
+				unfilter(cur, prev, stride);
+				unpack(cur, indices, w, depth);
+				sink.write(indices, 0);
+
+				byte [] t = prev;
+				prev = cur;
+				cur = t;
+			}
+			ok = true;
+		} catch (DataFormatException e) {
+			throw new IOException("corrupt PNG image data: " + e.getMessage());
+		} finally {
+			inflater.end();
+			sink.close(ok);
+		}
+
+		return new Dimension(w, h);
+	}
+
+	// reverses the PNG row filter, bytes per pixel is 1 for palette images
+	private static void unfilter(byte [] cur, byte [] prev, int stride) throws IOException {
+		int filter = cur[0];
+		switch(filter) {
+		case 0:
+			break;
+		case 1:
+			for(int i=2; i<=stride; i++)
+				cur[i] += cur[i-1];
+			break;
+		case 2:
+			for(int i=1; i<=stride; i++)
+				cur[i] += prev[i];
+			break;
+		case 3:
+			cur[1] += (prev[1] & 0xFF) >> 1;
+			for(int i=2; i<=stride; i++)
+				cur[i] += ((cur[i-1] & 0xFF) + (prev[i] & 0xFF)) >> 1;
+			break;
+		case 4:
+			cur[1] += prev[1];
+			for(int i=2; i<=stride; i++) {
+				int a = cur[i-1] & 0xFF;
+				int b = prev[i] & 0xFF;
+				int c = prev[i-1] & 0xFF;
+				int p = a + b - c;
+				int pa = Math.abs(p - a);
+				int pb = Math.abs(p - b);
+				int pc = Math.abs(p - c);
+				int pred = (pa <= pb && pa <= pc) ? a : (pb <= pc ? b : c);
+				cur[i] += pred;
+			}
+			break;
+		default:
+			throw new IOException("invalid PNG filter type " + filter);
+		}
+	}
+
+	private static void unpack(byte [] row, byte [] indices, int w, int depth) {
+		if(depth == 8) {
+			System.arraycopy(row, 1, indices, 0, w);
+			return;
+		}
+
+		int perByte = 8 / depth;
+		int mask = (1 << depth) - 1;
+		for(int i=0; i<w; i++) {
+			int b = row[1 + i / perByte] & 0xFF;
+			int shift = 8 - depth * (i % perByte + 1);
+			indices[i] = (byte)((b >> shift) & mask);
+		}
+	}
+
+	private Dimension rewriteGIF(byte [] data, File out, String outFormat) throws IOException {
+		int pos = 6;
+		if(data.length < 13)
+			throw new IOException("truncated GIF header");
+
+		int flags = u8(data, pos+4);
+		pos += 7;
+
+		int [] globalPalette = null;
+		if((flags & 0x80) != 0) {
+			int size = 1 << ((flags & 7) + 1);
+			globalPalette = readColorTable(data, pos, size);
+			pos += size * 3;
+		}
+
+		int transparent = -1;
+		while(pos < data.length) {
+			int b = u8(data, pos++);
+			if(b == 0x21) {
+				if(pos >= data.length)
+					break;
+				int label = u8(data, pos++);
+				if(label == 0xF9 && pos + 5 <= data.length && u8(data, pos) >= 4) {
+					if((u8(data, pos+1) & 1) != 0)
+						transparent = u8(data, pos+4);
+				}
+				pos = skipBlocks(data, pos);
+			} else if(b == 0x2C) {
+				if(pos + 10 > data.length)
+					throw new IOException("truncated GIF image descriptor");
+				int w = u16le(data, pos+4);
+				int h = u16le(data, pos+6);
+				int imageFlags = u8(data, pos+8);
+				pos += 9;
+
+				int [] srcPalette = globalPalette;
+				if((imageFlags & 0x80) != 0) {
+					int size = 1 << ((imageFlags & 7) + 1);
+					srcPalette = readColorTable(data, pos, size);
+					pos += size * 3;
+				}
+				if(srcPalette == null || w == 0 || h == 0 || pos >= data.length)
+					return null;
+
+				if(transparent >= 0 && transparent < srcPalette.length)
+					srcPalette[transparent] &= 0x00FFFFFF;
+
+				int minCodeSize = u8(data, pos++);
+				if(minCodeSize < 2 || minCodeSize > 8)
+					throw new IOException("invalid GIF code size " + minCodeSize);
+
+				decodeGIF(data, pos, minCodeSize, w, h, (imageFlags & 0x40) != 0, new RowSink(out, outFormat, w, h, srcPalette));
+				return new Dimension(w, h);
+			} else {
+				break;
+			}
+		}
+
+		// no image in the file
+		return null;
+	}
+
+	private static int [] readColorTable(byte [] data, int pos, int size) throws IOException {
+		if(pos + size * 3 > data.length)
+			throw new IOException("truncated GIF color table");
+		int [] rgb = new int [size];
+		for(int i=0; i<size; i++)
+			rgb[i] = 0xFF000000 | (u8(data, pos+i*3) << 16) | (u8(data, pos+i*3+1) << 8) | u8(data, pos+i*3+2);
+		return rgb;
+	}
+
+	private static int skipBlocks(byte [] data, int pos) {
+		while(pos < data.length) {
+			int size = u8(data, pos++);
+			if(size == 0)
+				break;
+			pos += size;
+		}
+		return pos;
+	}
+
+	// LZW decoding straight from the data sub-blocks
+	// interlaced images are collected completely, the rows come in pass order
+	private static void decodeGIF(byte [] data, int pos, int minCodeSize, int w, int h, boolean interlaced, RowSink sink) throws IOException {
+		int clearCode = 1 << minCodeSize;
+		int endCode = clearCode + 1;
+
+		short [] prefix = new short [4096];
+		byte [] suffix = new byte [4096];
+		byte [] stack = new byte [4097];
+		for(int i=0; i<clearCode; i++)
+			suffix[i] = (byte)i;
+
+		int codeSize = minCodeSize + 1;
+		int nextCode = clearCode + 2;
+		int oldCode = -1;
+		int first = 0;
+
+		int bits = 0;
+		int bitCount = 0;
+		int blockEnd = pos;
+
+		byte [] pixels = new byte [interlaced ? w * h : w];
+		int pixel = 0;
+		int row = 0;
+		long total = (long)w * h;
+		long done = 0;
+
+		boolean ok = false;
+		try {
+			decode:
+			while(done < total) {
+				// read the next code from the sub-blocks
+				while(bitCount < codeSize) {
+					if(pos >= blockEnd) {
+						if(pos >= data.length)
+							break decode;
+						int size = u8(data, pos++);
+						if(size == 0)
+							break decode;
+						blockEnd = pos + size;
+						if(blockEnd > data.length)
+							blockEnd = data.length;
+						continue;
+					}
+					bits |= u8(data, pos++) << bitCount;
+					bitCount += 8;
+				}
+				int code = bits & ((1 << codeSize) - 1);
+				bits >>>= codeSize;
+				bitCount -= codeSize;
+
+				if(code == clearCode) {
+					codeSize = minCodeSize + 1;
+					nextCode = clearCode + 2;
+					oldCode = -1;
+					continue;
+				}
+				if(code == endCode)
+					break;
+
+				int top = 0;
+				if(oldCode < 0) {
+					if(code >= clearCode)
+						break;
+					stack[top++] = (byte)code;
+					first = code;
+				} else {
+					int in = code;
+					if(code >= nextCode) {
+						if(code > nextCode)
+							break;
+						stack[top++] = (byte)first;
+						code = oldCode;
+					}
+					while(code >= clearCode) {
+						stack[top++] = suffix[code];
+						code = prefix[code];
+					}
+					first = code;
+					stack[top++] = (byte)first;
+
+					if(nextCode < 4096) {
+						prefix[nextCode] = (short)oldCode;
+						suffix[nextCode] = (byte)first;
+						nextCode++;
+						if(nextCode == (1 << codeSize) && codeSize < 12)
+							codeSize++;
+					}
+					code = in;
+				}
+				oldCode = code;
+
+				while(top > 0 && done < total) {
+					byte v = stack[--top];
+					if(interlaced) {
+						pixels[interlacedRow(row, h) * w + pixel] = v;
+					} else {
+						pixels[pixel] = v;
+					}
+					done++;
+					if(++pixel == w) {
+						if(!interlaced)
+							sink.write(pixels, 0);
+						pixel = 0;
+						row++;
+					}
+				}
+			}
+
+			// missing pixels of truncated images stay at index 0
+			if(!interlaced) {
+				if(row < h) {
+					for(int i=pixel; i<w; i++)
+						pixels[i] = 0;
+					for(; row<h; row++) {
+						sink.write(pixels, 0);
+						for(int i=0; i<w; i++)
+							pixels[i] = 0;
+					}
+				}
+			} else {
+				for(int j=0; j<h; j++)
+					sink.write(pixels, j * w);
+			}
+			ok = true;
+		} finally {
+			sink.close(ok);
+		}
+	}
+
+	// image row of the n-th row in an interlaced GIF
+	private static int interlacedRow(int n, int h) {
+		int pass1 = (h + 7) / 8;
+		if(n < pass1)
+			return n * 8;
+		n -= pass1;
+		int pass2 = (h + 3) / 8;
+		if(n < pass2)
+			return n * 8 + 4;
+		n -= pass2;
+		int pass3 = (h + 1) / 4;
+		if(n < pass3)
+			return n * 4 + 2;
+		n -= pass3;
+		return n * 2 + 1;
+	}
+}
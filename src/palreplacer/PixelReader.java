@@ -0,0 +1,204 @@
+/*
+PalReplacer - Copyright (c) 2012 Hendrik Iben - hendrik [dot] iben <at> googlemail [dot] com
+
+Permission is hereby granted, free of charge, to any person obtaining a copy of
+this software and associated documentation files (the "Software"), to deal in
+the Software without restriction, including without limitation the rights to
+use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+of the Software, and to permit persons to whom the Software is furnished to do
+so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+
+
+package palreplacer;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DirectColorModel;
+import java.awt.image.PixelInterleavedSampleModel;
+import java.awt.image.Raster;
+import java.awt.image.SampleModel;
+import java.awt.image.SinglePixelPackedSampleModel;
+
+// reads rows of an image as ARGB values
+// the common image layouts are read straight from the backing arrays,
+// everything else goes through BufferedImage.getRGB. The results are the
+// same as getRGB for all layouts.
+// Readers only read from the image and may be used from several threads.
+public abstract class PixelReader {
+	protected final BufferedImage bi;
+
+	protected PixelReader(BufferedImage bi) {
+		this.bi = bi;
+	}
+
+	// reads w pixels of row y starting at x0 into argb[0..w-1]
+	public abstract void readRow(int y, int x0, int w, int [] argb);
+
+	public static PixelReader forImage(BufferedImage bi) {
+		ColorModel cm = bi.getColorModel();
+		Raster raster = bi.getRaster();
+		SampleModel sm = raster.getSampleModel();
+		DataBuffer db = raster.getDataBuffer();
+
+		if(db.getNumBanks() == 1 && cm.getColorSpace().isCS_sRGB() && !cm.isAlphaPremultiplied()) {
+			if(db instanceof DataBufferByte && sm instanceof PixelInterleavedSampleModel && cm instanceof ComponentColorModel) {
+				int bands = sm.getNumBands();
+				if(all8Bit(cm) && (bands == 3 || (bands == 4 && cm.hasAlpha())))
+					return new InterleavedByteReader(bi);
+			}
+
+			if(db instanceof DataBufferInt && sm instanceof SinglePixelPackedSampleModel && cm instanceof DirectColorModel) {
+				DirectColorModel dcm = (DirectColorModel)cm;
+				if(dcm.getRedMask() == 0xFF0000 && dcm.getGreenMask() == 0xFF00 && dcm.getBlueMask() == 0xFF) {
+					int alphaMask = dcm.getAlphaMask();
+					if(alphaMask == 0 || alphaMask == 0xFF000000)
+						return new PackedIntReader(bi, alphaMask == 0);
+				}
+			}
+		}
+
+		// gray is not sRGB, the colors come from a table built with the color model
+		if(db instanceof DataBufferByte && sm instanceof PixelInterleavedSampleModel && cm instanceof ComponentColorModel) {
+			if(db.getNumBanks() == 1 && sm.getNumBands() == 1 && all8Bit(cm))
+				return new GrayByteReader(bi);
+		}
+
+		return new GenericReader(bi);
+	}
+
+	private static boolean all8Bit(ColorModel cm) {
+		for(int size : cm.getComponentSize()) {
+			if(size != 8)
+				return false;
+		}
+		return true;
+	}
+
+	// offset of pixel (0, y) in the data array
+	protected static int rowOffset(Raster raster, int y, int scanlineStride, int pixelStride) {
+		int sx = -raster.getSampleModelTranslateX();
+		int sy = y - raster.getSampleModelTranslateY();
+		return raster.getDataBuffer().getOffset() + sy * scanlineStride + sx * pixelStride;
+	}
+
+	private static class GenericReader extends PixelReader {
+		public GenericReader(BufferedImage bi) {
+			super(bi);
+		}
+
+		@Override
+		public void readRow(int y, int x0, int w, int [] argb) {
+			bi.getRGB(x0, y, w, 1, argb, 0, w);
+		}
+	}
+
+	// 3 or 4 interleaved bytes per pixel in any band order (TYPE_3BYTE_BGR, TYPE_4BYTE_ABGR, ...)
+	private static class InterleavedByteReader extends PixelReader {
+		private final byte [] data;
+		private final int scanlineStride;
+		private final int pixelStride;
+		private final int ro, go, bo, ao;
+
+		public InterleavedByteReader(BufferedImage bi) {
+			super(bi);
+			Raster raster = bi.getRaster();
+			PixelInterleavedSampleModel sm = (PixelInterleavedSampleModel)raster.getSampleModel();
+			data = ((DataBufferByte)raster.getDataBuffer()).getData();
+			scanlineStride = sm.getScanlineStride();
+			pixelStride = sm.getPixelStride();
+			int [] offsets = sm.getBandOffsets();
+			ro = offsets[0];
+			go = offsets[1];
+			bo = offsets[2];
+			ao = offsets.length > 3 ? offsets[3] : -1;
+		}
+
+		@Override
+		public void readRow(int y, int x0, int w, int [] argb) {
+			int o = rowOffset(bi.getRaster(), y, scanlineStride, pixelStride) + x0 * pixelStride;
+			if(ao < 0) {
+				for(int i=0; i<w; i++, o+=pixelStride) {
+					argb[i] = 0xFF000000 | ((data[o+ro] & 0xFF) << 16) | ((data[o+go] & 0xFF) << 8) | (data[o+bo] & 0xFF);
+				}
+			} else {
+				for(int i=0; i<w; i++, o+=pixelStride) {
+					argb[i] = ((data[o+ao] & 0xFF) << 24) | ((data[o+ro] & 0xFF) << 16) | ((data[o+go] & 0xFF) << 8) | (data[o+bo] & 0xFF);
+				}
+			}
+		}
+	}
+
+	// TYPE_INT_RGB and TYPE_INT_ARGB
+	private static class PackedIntReader extends PixelReader {
+		private final int [] data;
+		private final int scanlineStride;
+		private final int opaque;
+
+		public PackedIntReader(BufferedImage bi, boolean opaque) {
+			super(bi);
+			Raster raster = bi.getRaster();
+			SinglePixelPackedSampleModel sm = (SinglePixelPackedSampleModel)raster.getSampleModel();
+			data = ((DataBufferInt)raster.getDataBuffer()).getData();
+			scanlineStride = sm.getScanlineStride();
+			this.opaque = opaque ? 0xFF000000 : 0;
+		}
+
+		@Override
+		public void readRow(int y, int x0, int w, int [] argb) {
+			int o = rowOffset(bi.getRaster(), y, scanlineStride, 1) + x0;
+			for(int i=0; i<w; i++) {
+				argb[i] = data[o+i] | opaque;
+			}
+		}
+	}
+
+	// single byte per pixel gray
+	private static class GrayByteReader extends PixelReader {
+		private final byte [] data;
+		private final int scanlineStride;
+		private final int pixelStride;
+		private final int offset;
+		private final int [] colors = new int [256];
+
+		public GrayByteReader(BufferedImage bi) {
+			super(bi);
+			Raster raster = bi.getRaster();
+			PixelInterleavedSampleModel sm = (PixelInterleavedSampleModel)raster.getSampleModel();
+			data = ((DataBufferByte)raster.getDataBuffer()).getData();
+			scanlineStride = sm.getScanlineStride();
+			pixelStride = sm.getPixelStride();
+			offset = sm.getBandOffsets()[0];
+
+			ColorModel cm = bi.getColorModel();
+			byte [] pixel = new byte [1];
+			for(int v=0; v<256; v++) {
+				pixel[0] = (byte)v;
+				colors[v] = cm.getRGB(pixel);
+			}
+		}
+
+		@Override
+		public void readRow(int y, int x0, int w, int [] argb) {
+			int o = rowOffset(bi.getRaster(), y, scanlineStride, pixelStride) + x0 * pixelStride + offset;
+			for(int i=0; i<w; i++, o+=pixelStride) {
+				argb[i] = colors[data[o] & 0xFF];
+			}
+		}
+	}
+}
@@ -0,0 +1,101 @@
+/*
+PalReplacer - Copyright (c) 2012 Hendrik Iben - hendrik [dot] iben <at> googlemail [dot] com
+
+Permission is hereby granted, free of charge, to any person obtaining a copy of
+this software and associated documentation files (the "Software"), to deal in
+the Software without restriction, including without limitation the rights to
+use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+of the Software, and to permit persons to whom the Software is furnished to do
+so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+
+
+package palreplacer;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// index maps from source palettes to the target palette
+// sprite sets often share a few source palettes, so the maps are kept for the
+// whole batch. Keys are the source palette colors, the least recently used
+// map is dropped when the cache is full.
+public class RemapCache {
+	public static final int DEFAULT_CAPACITY = 64;
+
+	private static class PaletteKey {
+		private final int [] rgb;
+		private final int hash;
+
+		PaletteKey(int [] rgb) {
+			this.rgb = rgb;
+			this.hash = Arrays.hashCode(rgb);
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if(!(o instanceof PaletteKey))
+				return false;
+			PaletteKey k = (PaletteKey)o;
+			return hash == k.hash && Arrays.equals(rgb, k.rgb);
+		}
+	}
+
+	private final Map<PaletteKey, Object> maps;
+	private int hits = 0;
+	private int misses = 0;
+
+	public RemapCache() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	public RemapCache(final int capacity) {
+		maps = new LinkedHashMap<PaletteKey, Object>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<PaletteKey, Object> eldest) {
+				return size() > capacity;
+			}
+		};
+	}
+
+	// returns the byte [] or short [] index map for a source palette, null if unknown
+	// the palette array must not be changed after it was used as a key
+	public synchronized Object get(int [] srcPalette) {
+		Object map = maps.get(new PaletteKey(srcPalette));
+		if(map == null)
+			misses++;
+		else
+			hits++;
+		return map;
+	}
+
+	public synchronized void put(int [] srcPalette, Object indexMap) {
+		maps.put(new PaletteKey(srcPalette), indexMap);
+	}
+
+	public synchronized int getHits() {
+		return hits;
+	}
+
+	public synchronized int getMisses() {
+		return misses;
+	}
+}
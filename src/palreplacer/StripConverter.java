@@ -0,0 +1,90 @@
+/*
+PalReplacer - Copyright (c) 2012 Hendrik Iben - hendrik [dot] iben <at> googlemail [dot] com
+
+Permission is hereby granted, free of charge, to any person obtaining a copy of
+this software and associated documentation files (the "Software"), to deal in
+the Software without restriction, including without limitation the rights to
+use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+of the Software, and to permit persons to whom the Software is furnished to do
+so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+
+
+package palreplacer;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+
+// converts images in horizontal strips so they never have to fit into memory
+// each strip is decoded with a source region, mapped and written to an
+// IndexedImageWriter, so memory use depends on the strip size only.
+// Readers that can not seek (PNG, JPEG) decode the rows above a region again
+// for every strip, strips are therefore made as large as the budget allows.
+// The result is the same as for the complete image, one Ditherer carries
+// its state from one strip to the next.
+public class StripConverter {
+	private final CompiledPalette palette;
+	private final ImageConverter converter;
+	private final int stripPixels;
+
+	public StripConverter(CompiledPalette palette, ImageConverter converter, int stripPixels) {
+		this.palette = palette;
+		this.converter = converter;
+		this.stripPixels = Math.max(1, stripPixels);
+	}
+
+	// true if the output format can be written in strips
+	public boolean canWrite(String outFormat) {
+		return IndexedImageWriter.canWrite(outFormat, palette.size());
+	}
+
+	// converts the first image of the reader
+	public void convert(ImageReader reader, File out, String outFormat) throws IOException {
+		convert(reader, out, outFormat, null);
+	}
+
+	// counts the pixels mapped by color if count is not null
+	public void convert(ImageReader reader, File out, String outFormat, ImageConverter.MatchCount count) throws IOException {
+		int w = reader.getWidth(0);
+		int h = reader.getHeight(0);
+		int stripHeight = Math.max(1, Math.min(h, stripPixels / w));
+
+		ImageReadParam param = reader.getDefaultReadParam();
+		Ditherer ditherer = converter.createDitherer(w);
+		IndexedImageWriter writer = IndexedImageWriter.create(outFormat, out, w, h, palette.getEntries(), palette.hasAlpha());
+		boolean ok = false;
+		try {
+			for(int y=0; y<h; y+=stripHeight) {
+				param.setSourceRegion(new Rectangle(0, y, w, Math.min(stripHeight, h - y)));
+				BufferedImage strip = reader.read(0, param);
+				BufferedImage indexed = converter.convertInPlace(strip, ditherer, count);
+				writer.writeRows(indexed);
+				converter.recycle(indexed);
+			}
+			ok = true;
+		} finally {
+			try {
+				writer.close(ok);
+			} finally {
+				if(!ok)
+					out.delete();
+			}
+		}
+	}
+}
@@ -0,0 +1,160 @@
+/*
+PalReplacer - Copyright (c) 2012 Hendrik Iben - hendrik [dot] iben <at> googlemail [dot] com
+
+Permission is hereby granted, free of charge, to any person obtaining a copy of
+this software and associated documentation files (the "Software"), to deal in
+the Software without restriction, including without limitation the rights to
+use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+of the Software, and to permit persons to whom the Software is furnished to do
+so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+
+
+package palreplacer;
+
+import java.util.Random;
+
+// square threshold maps for ordered dithering
+// maps hold the rank of each cell, 0 until size*size-1, and tile seamlessly.
+// Bayer maps are built recursively, the blue noise map with the
+// void-and-cluster method from a fixed seed, so it is the same on every run.
+public class ThresholdMap {
+	public static final int BLUE_NOISE_SIZE = 64;
+	// width of the gaussian filter of void-and-cluster
+	private static final double BLUE_NOISE_SIGMA = 1.5;
+	private static final long BLUE_NOISE_SEED = 0x50A1E77EL;
+
+	private static int [] blueNoise;
+
+	// ranks of a Bayer map, size must be a power of two
+	public static int [] bayer(int size) {
+		int [] map = new int [] { 0 };
+		for(int n=1; n<size; n*=2) {
+			int m = n * 2;
+			int [] next = new int [m * m];
+			for(int y=0; y<n; y++) {
+				for(int x=0; x<n; x++) {
+					int v = map[y * n + x] * 4;
+					next[y * m + x] = v;
+					next[y * m + x + n] = v + 2;
+					next[(y + n) * m + x] = v + 3;
+					next[(y + n) * m + x + n] = v + 1;
+				}
+			}
+			map = next;
+		}
+		return map;
+	}
+
+	// ranks of the blue noise map, computed once
+	public static synchronized int [] blueNoise() {
+		if(blueNoise == null)
+			blueNoise = voidAndCluster(BLUE_NOISE_SIZE, BLUE_NOISE_SIGMA, BLUE_NOISE_SEED);
+		return blueNoise;
+	}
+
+	public static int [] forMethod(DitherMethod method) {
+		if(method == DitherMethod.BLUE_NOISE)
+			return blueNoise();
+		return bayer(method.getMapSize());
+	}
+
+	// Ulichney's void-and-cluster on a torus
+	// the energy of a cell is the gaussian weighted sum of the set cells around it,
+	// the tightest cluster is the set cell with the most energy and the largest
+	// void the empty cell with the least. Ties go to the lowest cell.
+	private static int [] voidAndCluster(int size, double sigma, long seed) {
+		int cells = size * size;
+
+		// gaussian of the wrapped distance
+		double [] filter = new double [cells];
+		for(int y=0; y<size; y++) {
+			for(int x=0; x<size; x++) {
+				int dx = Math.min(x, size - x);
+				int dy = Math.min(y, size - y);
+				filter[y * size + x] = Math.exp(-(dx * dx + dy * dy) / (2 * sigma * sigma));
+			}
+		}
+
+		// initial pattern with a tenth of the cells set
+		boolean [] pattern = new boolean [cells];
+		double [] energy = new double [cells];
+		Random random = new Random(seed);
+		int ones = 0;
+		while(ones < cells / 10) {
+			int c = random.nextInt(cells);
+			if(!pattern[c]) {
+				pattern[c] = true;
+				addEnergy(energy, filter, size, c, 1);
+				ones++;
+			}
+		}
+
+		// move cells from clusters to voids until the pattern is even
+		while(true) {
+			int cluster = find(energy, pattern, true);
+			pattern[cluster] = false;
+			addEnergy(energy, filter, size, cluster, -1);
+			int hole = find(energy, pattern, false);
+			pattern[hole] = true;
+			addEnergy(energy, filter, size, hole, 1);
+			if(hole == cluster)
+				break;
+		}
+
+		int [] rank = new int [cells];
+
+		// ranks below the initial pattern: remove the tightest clusters
+		boolean [] p = pattern.clone();
+		double [] e = energy.clone();
+		for(int r=ones-1; r>=0; r--) {
+			int cluster = find(e, p, true);
+			p[cluster] = false;
+			addEnergy(e, filter, size, cluster, -1);
+			rank[cluster] = r;
+		}
+
+		// ranks above: fill the largest voids
+		for(int r=ones; r<cells; r++) {
+			int hole = find(energy, pattern, false);
+			pattern[hole] = true;
+			addEnergy(energy, filter, size, hole, 1);
+			rank[hole] = r;
+		}
+
+		return rank;
+	}
+
+	// the set cell with the most energy or the empty cell with the least
+	private static int find(double [] energy, boolean [] pattern, boolean set) {
+		int best = -1;
+		for(int c=0; c<energy.length; c++) {
+			if(pattern[c] != set)
+				continue;
+			if(best < 0 || (set ? energy[c] > energy[best] : energy[c] < energy[best]))
+				best = c;
+		}
+		return best;
+	}
+
+	private static void addEnergy(double [] energy, double [] filter, int size, int cell, int sign) {
+		int cx = cell % size;
+		int cy = cell / size;
+		for(int y=0; y<size; y++) {
+			int fy = ((y - cy + size) % size) * size;
+			for(int x=0; x<size; x++)
+				energy[y * size + x] += sign * filter[fy + (x - cx + size) % size];
+		}
+	}
+}
@@ -29,11 +29,14 @@ import java.awt.image.IndexColorModel;
 import java.io.BufferedReader;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.PrintStream;
+import java.lang.reflect.Constructor;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -49,6 +52,9 @@ import javax.swing.filechooser.FileFilter;
 public class Util {
 	// standard color weights for color error estimation
 	public static int [] std_error_weights = { 30, 59, 11 };
+	
+	// indices are at most 16 bit
+	public static final int MAX_PALETTE_ENTRIES = 0x10000;
 
 	public static String getExt(String filename) {
 		int idx = filename.lastIndexOf('.');
@@ -143,35 +149,47 @@ public class Util {
 	};
 
 	public static int [] getRawPaletteData(InputStream is, boolean withAlpha) throws IOException {
-		ByteArrayOutputStream baos = new ByteArrayOutputStream();
-		byte [] buffer = new byte [1024];
-		int r;
+		byte [] data = new byte [MAX_PALETTE_ENTRIES * 4 + 1];
 		int read = 0;
-		
-		while( (r = is.read(buffer)) > 0) {
-			baos.write(buffer, 0, r);
+		int r;
+		while(read < data.length && (r = is.read(data, read, data.length - read)) > 0)
 			read += r;
-			
-			if(read > 1024)
-				throw new PaletteExtractionException("File contains more data than expected!");
-		}
-		
-		byte [] data = baos.toByteArray();
-		
-		if( (data.length % (withAlpha ? 4 : 3)) != 0 ) {
+
+		if(read > MAX_PALETTE_ENTRIES * 4)
+			throw new PaletteExtractionException("File contains more data than expected!");
+
+		return getRawPaletteData(ByteBuffer.wrap(data, 0, read), withAlpha);
+	}
+
+	// reads a raw palette file through its channel, the size is checked before reading
+	public static int [] getRawPaletteData(File f, boolean withAlpha) throws IOException {
+		if(f.length() > MAX_PALETTE_ENTRIES * 4)
+			throw new PaletteExtractionException("File contains more data than expected!");
+
+		return getRawPaletteData(FileInput.read(f), withAlpha);
+	}
+
+	// (A)RGB triples or quadruples from position to limit of data
+	public static int [] getRawPaletteData(ByteBuffer data, boolean withAlpha) {
+		int bytes = data.remaining();
+		int size = withAlpha ? 4 : 3;
+
+		if( (bytes % size) != 0 ) {
 			throw new PaletteExtractionException("File can't be used for palette!");
 		}
 
-		int entries = data.length / (withAlpha ? 4 : 3);
+		int entries = bytes / size;
+		if(entries > MAX_PALETTE_ENTRIES)
+			throw new PaletteExtractionException("Palette contains too many colors (" + entries + ")");
 		
 		int [] rawdata = new int [entries];
 		
-		int bindex = 0;
+		int bindex = data.position();
 		for(int i=0; i<entries; i++) {
-			int alpha = withAlpha ? (((int)data[bindex++]) & 0xFF) : 0xFF;
-			int red = ((int)data[bindex++]) & 0xFF;
-			int green = ((int)data[bindex++]) & 0xFF;
-			int blue = ((int)data[bindex++]) & 0xFF;
+			int alpha = withAlpha ? (((int)data.get(bindex++)) & 0xFF) : 0xFF;
+			int red = ((int)data.get(bindex++)) & 0xFF;
+			int green = ((int)data.get(bindex++)) & 0xFF;
+			int blue = ((int)data.get(bindex++)) & 0xFF;
 			
 			rawdata[i] = (alpha << 24) | (red << 16) | (green << 8) | blue;
 		}
@@ -179,6 +197,34 @@ public class Util {
 		return rawdata;
 	}
 	
+	// loads a palette by file extension: raw palette (.pal), GIMP palette (.gpl) or image
+	// hasAlpha[0] tells if raw palette data contains alpha and is set for the result
+	public static int [] loadPalette(File f, boolean [] hasAlpha) throws IOException {
+		String ext = fileExt(f);
+		if(ext.equals("pal"))
+			return getRawPaletteData(f, hasAlpha[0]);
+
+		if(ext.equals("gpl")) {
+			hasAlpha[0] = false;
+			FileInputStream fis = new FileInputStream(f);
+			try {
+				return getGIMPPalette(fis);
+			} finally {
+				fis.close();
+			}
+		}
+
+		return getImagePaletteData(f, hasAlpha);
+	}
+
+	// palette of an image file
+	public static int [] getImagePaletteData(File f, boolean [] hasAlpha) throws IOException {
+		BufferedImage bi = FileInput.readImage(f);
+		if(bi == null)
+			throw new PaletteExtractionException("Unable to read image!");
+		return getImagePaletteData(bi, hasAlpha);
+	}
+
 	public static int [] getImagePaletteData(BufferedImage bi, boolean [] hasAlpha) {
 		ColorModel cm = bi.getColorModel();
 		
@@ -256,6 +302,9 @@ public class Util {
 		if(colorList.size()<2)
 			throw new PaletteExtractionException("Palette contains too few colors (" + colorList.size() + ")");
 		
+		if(colorList.size()>MAX_PALETTE_ENTRIES)
+			throw new PaletteExtractionException("Palette contains too many colors (" + colorList.size() + ")");
+		
 		int [] colors = new int [colorList.size()];
 		
 		for(int i=0; i<colorList.size(); i++)
@@ -340,6 +389,75 @@ public class Util {
 		return abs(r1 - r2) * std_error_weights[0] + abs(g1 - g2) * std_error_weights[1] + abs(b1 - b2) * std_error_weights[2];
 	}
 	
+	// palettes up to this size are searched linearly
+	public static final int LINEAR_SEARCH_LIMIT = 32;
+
+	// palettes up to this size are searched linearly with the vector matcher,
+	// it beats the k-d tree up to about this size
+	public static final int VECTOR_SEARCH_LIMIT = 1024;
+
+	// SIMD linear search, null if jdk.incubator.vector is not available
+	// or disabled with -Dpalreplacer.vector=false
+	private static final Constructor<?> vectorMatcher = findVectorMatcher();
+
+	private static Constructor<?> findVectorMatcher() {
+		if(!Boolean.parseBoolean(System.getProperty("palreplacer.vector", "true")))
+			return null;
+		try {
+			Constructor<?> ctor = Class.forName("palreplacer.VectorPaletteMatcher").getConstructor(int [].class);
+			// the module is only resolved on first use
+			ctor.newInstance(new int [] { 0 });
+			return ctor;
+		} catch (Exception e) {
+			return null;
+		} catch (LinkageError e) {
+			return null;
+		}
+	}
+
+	// true if linear searches run on the vector matcher
+	public static boolean isVectorSearchAvailable() {
+		return vectorMatcher != null;
+	}
+
+	// linear search, vectorized if possible
+	public static PaletteMatcher createLinearSearch(int [] rgb) {
+		if(vectorMatcher != null) {
+			try {
+				return (PaletteMatcher)vectorMatcher.newInstance((Object)rgb);
+			} catch (Exception e) {
+				// fall back to the scalar search
+			}
+		}
+		return new LinearPaletteMatcher(rgb);
+	}
+
+	// creates the exact search behind the lookup tables
+	public static PaletteMatcher createPaletteSearch(int [] rgb) {
+		return createPaletteSearch(rgb, ColorMetric.WEIGHTED_RGB);
+	}
+
+	// other metrics than weighted rgb are searched linearly in their own space
+	public static PaletteMatcher createPaletteSearch(int [] rgb, ColorMetric metric) {
+		if(metric != ColorMetric.WEIGHTED_RGB)
+			return new MetricPaletteMatcher(rgb, metric);
+		if(rgb.length <= LINEAR_SEARCH_LIMIT || (vectorMatcher != null && rgb.length <= VECTOR_SEARCH_LIMIT))
+			return createLinearSearch(rgb);
+		return new KDTreePaletteMatcher(rgb);
+	}
+
+	// creates the matcher used for converting to a palette
+	public static PaletteMatcher createPaletteMatcher(int [] rgb) {
+		return createLookup(createPaletteSearch(rgb), 8);
+	}
+
+	// puts a lookup table with the given bits per channel in front of a search
+	public static PaletteMatcher createLookup(PaletteMatcher search, int bits) {
+		if(search.getPalette().length <= ColorLookupTable.MAX_ENTRIES)
+			return new ColorLookupTable(search, bits);
+		return search;
+	}
+
 	public static int getBestColorIndex(int [] rgb, int firstTry, int c) {
 		if(firstTry > -1 && firstTry < rgb.length) {
 			if( (rgb[firstTry]&0xFFFFFF) == (c&0xFFFFFF) )